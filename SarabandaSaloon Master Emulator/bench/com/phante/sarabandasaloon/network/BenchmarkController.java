@@ -0,0 +1,37 @@
+/*
+ * Copyright 2015 Elvis Del Tedesco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.phante.sarabandasaloon.network;
+
+/**
+ * Controller per i benchmark: l'invio dello stato dopo ogni messaggio è
+ * disattivato, per misurare solo la macchina a stati senza usare la rete.
+ *
+ * @author deltedes
+ */
+class BenchmarkController extends SarabandaController {
+
+    /**
+     *
+     * @param buttonNumber
+     */
+    BenchmarkController(int buttonNumber) {
+        super(buttonNumber);
+    }
+
+    @Override
+    public void sendPushButtonStatus() {
+    }
+}
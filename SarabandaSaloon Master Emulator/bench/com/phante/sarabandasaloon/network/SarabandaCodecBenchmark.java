@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015 Elvis Del Tedesco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.phante.sarabandasaloon.network;
+
+import com.phante.sarabandasaloon.entity.PushButtonBoard;
+import com.phante.sarabandasaloon.entity.PushButtonStatus;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decodifica e codifica dei pacchetti per ogni comando.
+ *
+ * @author deltedes
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SarabandaCodecBenchmark {
+
+    @Param({"SRBND-B-O--", "SRBND-RESET", "SRBND-FULLRESET", "SRBND-ERROR", "SRBND-DEMO", "SRBND-X", "garbage"})
+    public String packet;
+
+    private SarabandaCodec codec;
+    private SarabandaFrame frame;
+    private ByteBuffer received;
+    private ByteBuffer out;
+    private SarabandaCommand command;
+    private PushButtonBoard board;
+    private final InetSocketAddress from = new InetSocketAddress("127.0.0.1", SarabandaController.UDP_SLAVE_PORT);
+
+    @Setup
+    public void setup() {
+        codec = new SarabandaCodec(SarabandaController.DEFAULT_BUTTON_NUMBER);
+        frame = new SarabandaFrame();
+        received = ByteBuffer.allocateDirect(SarabandaFrame.MAX_SIZE);
+        received.put(packet.getBytes(StandardCharsets.US_ASCII)).flip();
+        out = ByteBuffer.allocateDirect(SarabandaFrame.MAX_SIZE);
+
+        command = codec.decode(packet.getBytes(StandardCharsets.US_ASCII), packet.length());
+        board = new PushButtonBoard(SarabandaController.DEFAULT_BUTTON_NUMBER);
+        board.set(1, PushButtonStatus.PRESSED);
+    }
+
+    /**
+     * Caricamento e decodifica di un datagramma ricevuto.
+     *
+     * @return
+     */
+    @Benchmark
+    public SarabandaCommand decode() {
+        frame.load(received, from);
+        return codec.decode(frame);
+    }
+
+    /**
+     * Codifica del pacchetto con lo stesso comando.
+     *
+     * @return
+     */
+    @Benchmark
+    public ByteBuffer encode() {
+        out.clear();
+        if (command == SarabandaCommand.BUTTON) {
+            codec.encodeButtons(board, -1, out);
+        } else if (command != null && command != SarabandaCommand.INVALID) {
+            codec.encode(command, out);
+        }
+        return out;
+    }
+
+    /**
+     * Conversione testuale dello stato di un pulsante.
+     *
+     * @return
+     */
+    @Benchmark
+    public PushButtonStatus parseStatus() {
+        return PushButtonStatus.parse("O");
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2015 Elvis Del Tedesco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.phante.sarabandasaloon.network;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Consegna con conferma di un RESET tra due controller su loopback, con una
+ * frazione dei datagrammi scartata in entrambe le direzioni per simulare una
+ * rete con perdite. Misura il tempo dall'invio alla conferma, comprese le
+ * ritrasmissioni; i comandi abbandonati sono riportati a fine prova.
+ *
+ * @author deltedes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SarabandaReliableBenchmark {
+
+    // Porte di ascolto, diverse da quelle del protocollo
+    private static final int MASTER_PORT = 18988;
+    private static final int SLAVE_PORT = 18989;
+
+    @Param({"0", "0.1", "0.3"})
+    public double loss;
+
+    private BenchmarkController master;
+    private BenchmarkController slave;
+    private UDPServerService masterService;
+    private UDPServerService slaveService;
+
+    @Setup
+    public void setup() throws Exception {
+        master = new BenchmarkController(SarabandaController.DEFAULT_BUTTON_NUMBER);
+        master.sender.setDestination(InetAddress.getLoopbackAddress(), SLAVE_PORT);
+        master.sender.setSimulatedLoss(loss);
+        master.setReliableCommands(true);
+        masterService = new UDPServerService(MASTER_PORT, master.codec);
+        masterService.setOnFrame(master::handleFrame);
+        masterService.start();
+
+        slave = new BenchmarkController(SarabandaController.DEFAULT_BUTTON_NUMBER);
+        slave.sender.setDestination(InetAddress.getLoopbackAddress(), MASTER_PORT);
+        slave.sender.setSimulatedLoss(loss);
+        slaveService = new UDPServerService(SLAVE_PORT, slave.codec);
+        slaveService.setOnFrame(slave::handleFrame);
+        slaveService.start();
+
+        // Lascia ai servizi il tempo di aprire i canali
+        Thread.sleep(200);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Logger.getLogger(SarabandaReliableBenchmark.class.getName()).log(Level.INFO, "Comandi abbandonati {0}, ritrasmissioni {1}",
+                new Object[]{master.getMetrics().getDeliveryFailures(), master.getMetrics().getCommandsRetransmitted()});
+        masterService.cancel();
+        slaveService.cancel();
+        master.close();
+        slave.close();
+    }
+
+    /**
+     * Invia un RESET e attende che sia confermato o abbandonato.
+     */
+    @Benchmark
+    public void resetUntilAcknowledged() {
+        master.sendSarabandaReset();
+        while (master.getCommandsInFlight() > 0) {
+            Thread.yield();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2015 Elvis Del Tedesco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.phante.sarabandasaloon.network;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Dalla spedizione di un datagramma su loopback fino all'applicazione allo
+ * stato dei pulsanti, passando per UDPServerService. I pacchetti alternano
+ * pressione e full reset, per cui nessuno viene scartato come duplicato.
+ *
+ * @author deltedes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SarabandaRoundTripBenchmark {
+
+    // Porta di ascolto, diversa da quelle del protocollo
+    private static final int LISTEN_PORT = 18888;
+    // Attesa prima di ripetere un invio
+    private static final long RESEND_NANOS = 100_000_000L;
+
+    private BenchmarkController controller;
+    private UDPServerService service;
+    private DatagramChannel slave;
+    private InetSocketAddress master;
+    private ByteBuffer press;
+    private ByteBuffer fullReset;
+    // Pacchetti applicati dal controller
+    private final AtomicLong applied = new AtomicLong();
+    private long expected;
+
+    @Setup
+    public void setup() throws Exception {
+        controller = new BenchmarkController(SarabandaController.DEFAULT_BUTTON_NUMBER);
+        service = new UDPServerService(LISTEN_PORT, controller.codec);
+        service.setOnFrame(frame -> {
+            controller.handleFrame(frame);
+            applied.incrementAndGet();
+        });
+        service.start();
+        // Lascia al servizio il tempo di aprire il canale
+        Thread.sleep(200);
+
+        slave = DatagramChannel.open();
+        master = new InetSocketAddress(InetAddress.getLoopbackAddress(), LISTEN_PORT);
+        press = ByteBuffer.allocateDirect(SarabandaFrame.MAX_SIZE);
+        press.put("SRBND-B-O--".getBytes(StandardCharsets.US_ASCII)).flip();
+        fullReset = ByteBuffer.allocateDirect(SarabandaFrame.MAX_SIZE);
+        fullReset.put("SRBND-FULLRESET".getBytes(StandardCharsets.US_ASCII)).flip();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        service.cancel();
+        slave.close();
+    }
+
+    /**
+     * Invia un pacchetto e attende che sia stato applicato, ripetendo
+     * l'invio se il datagramma va perso.
+     *
+     * @throws Exception
+     */
+    @Benchmark
+    public void receiveToState() throws Exception {
+        ByteBuffer packet = (expected & 1) == 0 ? press : fullReset;
+        expected++;
+        while (applied.get() < expected) {
+            packet.rewind();
+            slave.send(packet, master);
+            long deadline = System.nanoTime() + RESEND_NANOS;
+            while (applied.get() < expected && System.nanoTime() < deadline) {
+                Thread.yield();
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2015 Elvis Del Tedesco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.phante.sarabandasaloon.network;
+
+import com.phante.sarabandasaloon.entity.PushButtonBoard;
+import com.phante.sarabandasaloon.entity.PushButtonStatus;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Costruzione e invio dei pacchetti in uscita. L'invio avviene su loopback
+ * verso una porta su cui nessuno ascolta.
+ *
+ * @author deltedes
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SarabandaSendBenchmark {
+
+    // Porta di destinazione, diversa da quelle del protocollo
+    private static final int SINK_PORT = 18889;
+
+    @Param({"4", "64"})
+    public int buttons;
+
+    private SarabandaCodec codec;
+    private SarabandaSender sender;
+    private PushButtonBoard board;
+    private ByteBuffer out;
+
+    @Setup
+    public void setup() {
+        codec = new SarabandaCodec(buttons);
+        sender = new SarabandaSender(codec);
+        sender.setDestination(InetAddress.getLoopbackAddress(), SINK_PORT);
+        board = new PushButtonBoard(buttons);
+        board.set(1, PushButtonStatus.PRESSED);
+        out = ByteBuffer.allocateDirect(SarabandaFrame.MAX_SIZE);
+    }
+
+    @TearDown
+    public void tearDown() {
+        sender.close();
+    }
+
+    /**
+     * Codifica del pacchetto B dallo stato dei pulsanti.
+     *
+     * @return
+     */
+    @Benchmark
+    public ByteBuffer buildButtonFrame() {
+        out.clear();
+        codec.encodeButtons(board, -1, out);
+        return out;
+    }
+
+    /**
+     * Invio dello stato dei pulsanti, precalcolato fino a
+     * SarabandaSender.TABLE_MAX_BUTTONS pulsanti.
+     */
+    @Benchmark
+    public void sendButtons() {
+        sender.sendButtons(board, -1);
+    }
+
+    /**
+     * Invio di un comando precalcolato.
+     */
+    @Benchmark
+    public void sendCommand() {
+        sender.sendCommand(SarabandaCommand.RESET);
+    }
+}
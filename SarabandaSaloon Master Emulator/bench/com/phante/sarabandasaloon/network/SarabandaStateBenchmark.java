@@ -0,0 +1,110 @@
+/*
+ * Copyright 2015 Elvis Del Tedesco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.phante.sarabandasaloon.network;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Transizioni di stato dei pulsanti attraverso parseMessage: pressione, reset,
+ * errore e full reset, senza invio sulla rete.
+ *
+ * @author deltedes
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SarabandaStateBenchmark {
+
+    @Param({"4", "64"})
+    public int buttons;
+
+    private BenchmarkController controller;
+    private SarabandaFrame press;
+    private SarabandaFrame reset;
+    private SarabandaFrame error;
+    private SarabandaFrame fullReset;
+
+    @Setup
+    public void setup() {
+        controller = new BenchmarkController(buttons);
+        StringBuilder pressed = new StringBuilder(SarabandaController.MESSAGE_HEADER).append(SarabandaController.BUTTON_COMMAND);
+        for (int i = 0; i < buttons; i++) {
+            pressed.append(i == 1 ? 'O' : '-');
+        }
+        press = frame(pressed.toString());
+        reset = frame(SarabandaController.MESSAGE_HEADER + SarabandaController.RESET_COMMAND);
+        error = frame(SarabandaController.MESSAGE_HEADER + SarabandaController.ERROR_COMMAND);
+        fullReset = frame(SarabandaController.MESSAGE_HEADER + SarabandaController.FULLRESET_COMMAND);
+    }
+
+    /**
+     * Decodifica una volta il pacchetto, i benchmark misurano solo
+     * l'applicazione allo stato.
+     */
+    private SarabandaFrame frame(String packet) {
+        SarabandaFrame frame = new SarabandaFrame();
+        frame.load(ByteBuffer.wrap(packet.getBytes(StandardCharsets.US_ASCII)), null);
+        controller.codec.decode(frame);
+        return frame;
+    }
+
+    /**
+     * Pressione e reset.
+     */
+    @Benchmark
+    public void pressReset() {
+        controller.parseMessage(press);
+        controller.parseMessage(reset);
+    }
+
+    /**
+     * Pressione, errore e full reset.
+     */
+    @Benchmark
+    public void pressErrorFullReset() {
+        controller.parseMessage(press);
+        controller.parseMessage(error);
+        controller.parseMessage(fullReset);
+    }
+
+    /**
+     * Pressione locale e reset.
+     *
+     * @return
+     */
+    @Benchmark
+    public boolean localPressReset() {
+        boolean pressed = controller.getButtonBoard().press(2);
+        controller.parseMessage(reset);
+        return pressed;
+    }
+}
@@ -15,30 +15,46 @@
  */
 package com.phante.sarabandasaloon.entity;
 
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import javafx.beans.property.SimpleStringProperty;
-import javafx.beans.property.StringProperty;
+import javafx.beans.property.ReadOnlyObjectProperty;
+import javafx.beans.property.ReadOnlyObjectWrapper;
 
 /**
+ * Vista in sola lettura di un pulsante all'interno di un PushButtonBoard. Lo
+ * stato viene letto direttamente dalla parola condivisa, mentre la property
+ * osservabile viene allineata con refresh dal thread della UI.
  *
  * @author deltedes
  */
 public class PushButton {
-    private final StringProperty value = new SimpleStringProperty();
+    // Stato condiviso dei pulsanti
+    private final PushButtonBoard board;
+    // Posizione del pulsante
+    private final int index;
+    // Ultimo stato pubblicato verso la UI
+    private final ReadOnlyObjectWrapper<PushButtonStatus> status = new ReadOnlyObjectWrapper<>();
     
-    public PushButton() {
-        value.setValue(PushButtonStatus.ENABLED.toString());
+    public PushButton(PushButtonBoard board, int index) {
+        this.board = board;
+        this.index = index;
+        refresh();
     }
-    public StringProperty valueProperty () {
-        return value;
+
+    public ReadOnlyObjectProperty<PushButtonStatus> statusProperty () {
+        return status.getReadOnlyProperty();
+    }
+    
+    public int getIndex() {
+        return index;
     }
     
     public PushButtonStatus getStatus() {
-        return PushButtonStatus.parse(value.getValue());
+        return board.getStatus(index);
     }
     
-    public void setStatus(PushButtonStatus newvalue) {
-        value.setValue(newvalue.toString());
+    /**
+     * Allinea la property osservabile allo stato corrente.
+     */
+    public void refresh() {
+        status.setValue(getStatus());
     }
 }
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2015 Elvis Del Tedesco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.phante.sarabandasaloon.entity;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Stato di tutti i pulsanti raccolto in parole atomiche, con 2 bit per
+ * pulsante pari all'ordinale di PushButtonStatus e 32 pulsanti per parola.
+ * Tutte le modifiche sono compare-and-set sulle parole, per cui la regola
+ * "vince il primo che preme" non richiede lock ed è condivisibile tra il
+ * thread di rete e la UI.
+ *
+ * Fino a 32 pulsanti la pressione è un unico compare-and-set sulla parola;
+ * oltre, la pressione viene prima assegnata con un compare-and-set sul
+ * pulsante vincitore e solo dopo riportata nella parola che lo contiene.
+ *
+ * @author deltedes
+ */
+public class PushButtonBoard {
+
+    // Bit usati per lo stato di un pulsante
+    public static final int BITS_PER_BUTTON = 2;
+    // Numero di pulsanti contenuti in una parola
+    public static final int BUTTONS_PER_WORD = Long.SIZE / BITS_PER_BUTTON;
+    // Numero massimo di pulsanti gestiti
+    public static final int MAX_BUTTONS = 64;
+    // Numero massimo di parole
+    public static final int MAX_WORDS = MAX_BUTTONS / BUTTONS_PER_WORD;
+
+    private static final PushButtonStatus[] STATUSES = PushButtonStatus.values();
+    private static final long STATUS_MASK = 0x3L;
+    // Bit meno significativo di ogni pulsante
+    private static final long LOW_BITS = 0x5555555555555555L;
+    // Nessun pulsante premuto
+    private static final int NONE = -1;
+
+    // Numero dei pulsanti
+    private final int size;
+    // Stato dei pulsanti, tutti abilitati quando le parole valgono 0
+    private final AtomicLongArray words;
+    // Bit validi dell'ultima parola
+    private final long lastMask;
+    // Pulsante premuto, usato per l'arbitraggio quando le parole sono più di una
+    private final AtomicInteger pressed = new AtomicInteger(NONE);
+
+    /**
+     *
+     * @param size
+     */
+    public PushButtonBoard(int size) {
+        if (size < 1 || size > MAX_BUTTONS) {
+            throw new IllegalArgumentException("Numero di pulsanti non valido: " + size);
+        }
+        this.size = size;
+        this.words = new AtomicLongArray(wordCount(size));
+
+        int lastButtons = size - (words.length() - 1) * BUTTONS_PER_WORD;
+        this.lastMask = (lastButtons == BUTTONS_PER_WORD) ? -1L : (1L << (BITS_PER_BUTTON * lastButtons)) - 1;
+    }
+
+    /**
+     *
+     * @param size
+     * @return il numero di parole necessarie per size pulsanti
+     */
+    public static int wordCount(int size) {
+        return (size + BUTTONS_PER_WORD - 1) / BUTTONS_PER_WORD;
+    }
+
+    /**
+     *
+     * @return
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     *
+     * @return
+     */
+    public int wordCount() {
+        return words.length();
+    }
+
+    /**
+     *
+     * @param word
+     * @return la parola con lo stato dei pulsanti da 32 * word in poi
+     */
+    public long getWord(int word) {
+        return words.get(word);
+    }
+
+    /**
+     *
+     * @param button
+     * @return
+     */
+    public PushButtonStatus getStatus(int button) {
+        return status(words.get(button / BUTTONS_PER_WORD), button % BUTTONS_PER_WORD);
+    }
+
+    /**
+     * Estrae lo stato di un pulsante da una parola.
+     *
+     * @param word
+     * @param button posizione del pulsante all'interno della parola
+     * @return
+     */
+    public static PushButtonStatus status(long word, int button) {
+        return STATUSES[(int) ((word >>> (BITS_PER_BUTTON * button)) & STATUS_MASK)];
+    }
+
+    /**
+     * Restituisce la parola con lo stato di un pulsante modificato.
+     *
+     * @param word
+     * @param button posizione del pulsante all'interno della parola
+     * @param status
+     * @return
+     */
+    public static long with(long word, int button, PushButtonStatus status) {
+        int shift = BITS_PER_BUTTON * button;
+        return (word & ~(STATUS_MASK << shift)) | ((long) status.ordinal() << shift);
+    }
+
+    /**
+     * Verifica se nella parola c'è almeno un pulsante premuto.
+     *
+     * @param word
+     * @return
+     */
+    public static boolean hasPressed(long word) {
+        return matching(word, PushButtonStatus.PRESSED) != 0;
+    }
+
+    /**
+     * Cerca il primo pulsante premuto di una parola.
+     *
+     * @param word
+     * @return la posizione del pulsante all'interno della parola, -1 se
+     * nessun pulsante è premuto
+     */
+    public static int firstPressed(long word) {
+        long selected = matching(word, PushButtonStatus.PRESSED);
+        return (selected == 0) ? NONE : Long.numberOfTrailingZeros(selected) / BITS_PER_BUTTON;
+    }
+
+    /**
+     * Restituisce una maschera con il bit meno significativo acceso per ogni
+     * pulsante che si trova nello stato indicato.
+     *
+     * @param word
+     * @param status
+     * @return
+     */
+    private static long matching(long word, PushButtonStatus status) {
+        long pattern = LOW_BITS * status.ordinal();
+        long diff = word ^ pattern;
+        return ~(diff | (diff >>> 1)) & LOW_BITS;
+    }
+
+    /**
+     *
+     * @param word
+     * @return i bit validi della parola
+     */
+    private long mask(int word) {
+        return (word == words.length() - 1) ? lastMask : -1L;
+    }
+
+    /**
+     * Pressione di un pulsante: riesce solo se il pulsante è abilitato e
+     * nessun altro è già premuto.
+     *
+     * @param button
+     * @return true se questa chiamata ha vinto la pressione
+     */
+    public boolean press(int button) {
+        int index = button / BUTTONS_PER_WORD;
+        int offset = button % BUTTONS_PER_WORD;
+
+        // Con una sola parola basta un compare-and-set
+        if (words.length() == 1) {
+            while (true) {
+                long current = words.get(0);
+                if (hasPressed(current) || status(current, offset) != PushButtonStatus.ENABLED) {
+                    return false;
+                }
+                if (words.compareAndSet(0, current, with(current, offset, PushButtonStatus.PRESSED))) {
+                    return true;
+                }
+            }
+        }
+
+        // Con più parole la pressione viene assegnata prima al pulsante
+        if (status(words.get(index), offset) != PushButtonStatus.ENABLED || !pressed.compareAndSet(NONE, button)) {
+            return false;
+        }
+        while (true) {
+            long current = words.get(index);
+            if (status(current, offset) != PushButtonStatus.ENABLED) {
+                // Il pulsante è cambiato nel frattempo, rilascio l'arbitraggio
+                pressed.compareAndSet(button, NONE);
+                return false;
+            }
+            if (words.compareAndSet(index, current, with(current, offset, PushButtonStatus.PRESSED))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Imposta lo stato di un pulsante.
+     *
+     * @param button
+     * @param status
+     * @return la parola precedente che contiene il pulsante
+     */
+    public long set(int button, PushButtonStatus status) {
+        int index = button / BUTTONS_PER_WORD;
+        int offset = button % BUTTONS_PER_WORD;
+        while (true) {
+            long current = words.get(index);
+            if (words.compareAndSet(index, current, with(current, offset, status))) {
+                updatePressed();
+                return current;
+            }
+        }
+    }
+
+    /**
+     * Sostituisce una parola.
+     *
+     * @param word
+     * @param value
+     * @return la parola precedente
+     */
+    public long setWord(int word, long value) {
+        long previous = words.getAndSet(word, value & mask(word));
+        updatePressed();
+        return previous;
+    }
+
+    /**
+     * Porta tutti i pulsanti di una parola che si trovano nello stato from
+     * nello stato to.
+     *
+     * @param word
+     * @param from
+     * @param to
+     * @return la parola precedente
+     */
+    public long replace(int word, PushButtonStatus from, PushButtonStatus to) {
+        while (true) {
+            long current = words.get(word);
+            long updated = replaced(current, from, to) & mask(word);
+            if (current == updated || words.compareAndSet(word, current, updated)) {
+                updatePressed();
+                return current;
+            }
+        }
+    }
+
+    /**
+     * Restituisce la parola con tutti i pulsanti nello stato from portati
+     * nello stato to.
+     *
+     * @param word
+     * @param from
+     * @param to
+     * @return
+     */
+    public static long replaced(long word, PushButtonStatus from, PushButtonStatus to) {
+        long selected = matching(word, from);
+        // Estende la selezione ad entrambi i bit dei pulsanti coinvolti
+        long bits = selected | (selected << 1);
+        return (word & ~bits) | (selected * to.ordinal());
+    }
+
+    /**
+     * Riallinea il pulsante assegnato dall'arbitraggio dopo una modifica
+     * esterna alla pressione, come un reset o un pacchetto B.
+     */
+    private void updatePressed() {
+        if (words.length() == 1) {
+            return;
+        }
+        int current = NONE;
+        for (int w = 0; w < words.length() && current == NONE; w++) {
+            long selected = matching(words.get(w), PushButtonStatus.PRESSED) & mask(w);
+            if (selected != 0) {
+                current = w * BUTTONS_PER_WORD + Long.numberOfTrailingZeros(selected) / BITS_PER_BUTTON;
+            }
+        }
+        pressed.set(current);
+    }
+}
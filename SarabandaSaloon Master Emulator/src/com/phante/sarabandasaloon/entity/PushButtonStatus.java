@@ -15,9 +15,6 @@
  */
 package com.phante.sarabandasaloon.entity;
 
-import java.util.logging.Level;
-import java.util.logging.Logger;
-
 /**
  *
  * @author deltedes
@@ -28,21 +25,50 @@ public enum PushButtonStatus {
     ERROR("X"),
     DISABLED("#");
     
-    private final String name;       
+    private final String name;
+    private final byte code;
+
+    // Tabella di conversione dal carattere di protocollo allo stato
+    private static final PushButtonStatus[] BY_CODE = new PushButtonStatus[128];
+
+    static {
+        for (PushButtonStatus status : PushButtonStatus.values()) {
+            BY_CODE[status.code] = status;
+        }
+    }
 
     private PushButtonStatus(String s) {
         name = s;
+        code = (byte) s.charAt(0);
     }
     
     @Override
     public String toString(){
        return name;
     }
+
+    /**
+     * 
+     * @return il carattere che rappresenta lo stato nei pacchetti Sarabanda
+     */
+    public byte code() {
+        return code;
+    }
+
+    /**
+     * Converte il carattere di protocollo nello stato corrispondente.
+     * 
+     * @param code
+     * @return lo stato oppure null se il carattere non rappresenta uno stato
+     */
+    public static PushButtonStatus fromCode(int code) {
+        return (code >= 0 && code < BY_CODE.length) ? BY_CODE[code] : null;
+    }
     
     public static PushButtonStatus parse(String value) {
-        for (PushButtonStatus status: PushButtonStatus.values()) {
-            //Logger.getLogger(PushButtonStatus.class.getName()).log(Level.INFO, "Confronto {0} con {1}", new Object[]{value, status.toString()});
-            if (value.equals(status.toString())) return status;
+        if (value != null && value.length() == 1) {
+            PushButtonStatus status = fromCode(value.charAt(0));
+            if (status != null) return status;
         }
         return ENABLED;
     }
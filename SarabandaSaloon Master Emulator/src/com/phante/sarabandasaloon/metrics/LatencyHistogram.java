@@ -0,0 +1,157 @@
+/*
+ * Copyright 2015 Elvis Del Tedesco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.phante.sarabandasaloon.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Istogramma delle latenze in nanosecondi a memoria fissa, con intervalli
+ * log-lineari come HdrHistogram: ogni potenza di 2 è divisa in 128
+ * sotto-intervalli, per cui l'errore sui percentili resta sotto l'1%.
+ *
+ * La registrazione è un incremento atomico, non alloca e può avvenire da più
+ * thread; i valori oltre HIGHEST_TRACKABLE vengono registrati come tali.
+ *
+ * @author deltedes
+ */
+public class LatencyHistogram {
+
+    // Bit di precisione per ogni potenza di 2
+    private static final int SUB_BITS = 7;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    // Esponente del valore massimo, circa 18 minuti
+    private static final int MAX_EXPONENT = 40;
+    // Valore massimo registrabile
+    public static final long HIGHEST_TRACKABLE = (1L << MAX_EXPONENT) - 1;
+
+    // Conteggi per intervallo
+    private final AtomicLongArray counts = new AtomicLongArray((MAX_EXPONENT - SUB_BITS + 1) * SUB_COUNT);
+    // Valore massimo registrato
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Registra un valore.
+     *
+     * @param nanos
+     */
+    public void record(long nanos) {
+        long value = Math.min(Math.max(nanos, 0), HIGHEST_TRACKABLE);
+        counts.incrementAndGet(index(value));
+
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     *
+     * @param value
+     * @return l'intervallo che contiene il valore
+     */
+    private static int index(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int bucket = exponent - SUB_BITS + 1;
+        int sub = (int) (value >>> (exponent - SUB_BITS)) - SUB_COUNT;
+        return bucket * SUB_COUNT + sub;
+    }
+
+    /**
+     *
+     * @param index
+     * @return il valore più alto contenuto nell'intervallo
+     */
+    private static long highestEquivalent(int index) {
+        int bucket = index / SUB_COUNT;
+        int sub = index % SUB_COUNT;
+        if (bucket == 0) {
+            return sub;
+        }
+        long lowest = (long) (SUB_COUNT + sub) << (bucket - 1);
+        return lowest + (1L << (bucket - 1)) - 1;
+    }
+
+    /**
+     *
+     * @return il numero di valori registrati
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     *
+     * @return il valore massimo registrato
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     *
+     * @param percentile da 0 a 100
+     * @return il valore sotto cui cade la percentuale indicata dei valori
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long cumulative = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            cumulative += counts.get(i);
+            if (cumulative >= target) {
+                return Math.min(highestEquivalent(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Azzera l'istogramma.
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        max.set(0);
+    }
+
+    /**
+     *
+     * @return il riepilogo in microsecondi
+     */
+    @Override
+    public String toString() {
+        return String.format("n=%d p50=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus",
+                getCount(),
+                getValueAtPercentile(50) / 1000.0,
+                getValueAtPercentile(99) / 1000.0,
+                getValueAtPercentile(99.9) / 1000.0,
+                getMax() / 1000.0);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2015 Elvis Del Tedesco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.phante.sarabandasaloon.metrics;
+
+/**
+ * Fasi del percorso di un pacchetto, ognuna con il proprio istogramma delle
+ * latenze condiviso da tutto il processo.
+ *
+ * @author deltedes
+ */
+public enum LatencyStage {
+    // Dal ritorno della receive al frame pronto per la decodifica
+    RECEIVE,
+    // Decodifica del frame
+    DECODE,
+    // Applicazione del comando allo stato dei pulsanti
+    APPLY,
+    // Invio di un datagramma sul canale
+    SEND,
+    // Aggiornamento di un simbolo nella UI
+    RENDER,
+    // Dalla ricezione del pacchetto all'aggiornamento della UI
+    SCREEN;
+
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    /**
+     *
+     * @return
+     */
+    public LatencyHistogram histogram() {
+        return histogram;
+    }
+
+    /**
+     * Registra la durata della fase iniziata all'istante indicato.
+     *
+     * @param startNanos valore di System.nanoTime all'inizio della fase
+     */
+    public void recordSince(long startNanos) {
+        histogram.record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     *
+     * @return il riepilogo di tutte le fasi con almeno un valore, una per riga
+     */
+    public static String report() {
+        StringBuilder report = new StringBuilder();
+        for (LatencyStage stage : values()) {
+            if (stage.histogram.getCount() > 0) {
+                report.append(stage).append(' ').append(stage.histogram).append(System.lineSeparator());
+            }
+        }
+        return report.toString();
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2015 Elvis Del Tedesco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.phante.sarabandasaloon.metrics;
+
+import com.phante.sarabandasaloon.network.SarabandaCommand;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Endpoint HTTP /metrics con le metriche registrate e le latenze delle fasi
+ * nel formato testuale di Prometheus, basato sul server HTTP del JDK.
+ *
+ * @author deltedes
+ */
+public class PrometheusExporter implements AutoCloseable {
+
+    // Percorso delle metriche
+    public static final String PATH = "/metrics";
+
+    // Quantili esportati per le latenze
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    private final HttpServer server;
+
+    /**
+     * Avvia l'endpoint sulla porta indicata.
+     *
+     * @param port
+     * @throws IOException
+     */
+    public PrometheusExporter(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext(PATH, this::handle);
+        server.start();
+        Logger.getLogger(PrometheusExporter.class.getName()).log(Level.INFO, "Metriche disponibili su http://localhost:{0}{1}", new Object[]{String.valueOf(port), PATH});
+    }
+
+    /**
+     * Risponde a una richiesta con tutte le metriche.
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     *
+     * @return le metriche nel formato testuale di Prometheus
+     */
+    public static String scrape() {
+        StringBuilder text = new StringBuilder(4096);
+
+        header(text, "sarabanda_packets_received_total", "counter", "Datagrammi ricevuti");
+        for (SarabandaMetrics metrics : SarabandaMetrics.registered()) {
+            sample(text, "sarabanda_packets_received_total", metrics, null, metrics.getPacketsReceived());
+        }
+        header(text, "sarabanda_packets_invalid_total", "counter", "Datagrammi che non sono messaggi Sarabanda");
+        for (SarabandaMetrics metrics : SarabandaMetrics.registered()) {
+            sample(text, "sarabanda_packets_invalid_total", metrics, null, metrics.getPacketsInvalid());
+        }
+        header(text, "sarabanda_packets_command_total", "counter", "Messaggi Sarabanda elaborati per comando");
+        for (SarabandaMetrics metrics : SarabandaMetrics.registered()) {
+            for (SarabandaCommand command : SarabandaCommand.values()) {
+                sample(text, "sarabanda_packets_command_total", metrics, "command=\"" + command.name() + "\"", metrics.getPackets(command));
+            }
+        }
+        header(text, "sarabanda_packets_sent_total", "counter", "Datagrammi inviati");
+        for (SarabandaMetrics metrics : SarabandaMetrics.registered()) {
+            sample(text, "sarabanda_packets_sent_total", metrics, null, metrics.getPacketsSent());
+        }
+        header(text, "sarabanda_send_failures_total", "counter", "Invii falliti");
+        for (SarabandaMetrics metrics : SarabandaMetrics.registered()) {
+            sample(text, "sarabanda_send_failures_total", metrics, null, metrics.getSendFailures());
+        }
+        header(text, "sarabanda_presses_discarded_total", "counter", "Pressioni che hanno perso l'arbitraggio");
+        for (SarabandaMetrics metrics : SarabandaMetrics.registered()) {
+            sample(text, "sarabanda_presses_discarded_total", metrics, null, metrics.getPressesDiscarded());
+        }
+        header(text, "sarabanda_packets_own_ignored_total", "counter", "Datagrammi spediti dal controller stesso e ignorati");
+        for (SarabandaMetrics metrics : SarabandaMetrics.registered()) {
+            sample(text, "sarabanda_packets_own_ignored_total", metrics, null, metrics.getPacketsOwnIgnored());
+        }
+        header(text, "sarabanda_packets_stale_total", "counter", "Datagrammi duplicati o fuori ordine");
+        for (SarabandaMetrics metrics : SarabandaMetrics.registered()) {
+            sample(text, "sarabanda_packets_stale_total", metrics, null, metrics.getPacketsStale());
+        }
+        header(text, "sarabanda_commands_retransmitted_total", "counter", "Ritrasmissioni dei comandi non confermati");
+        for (SarabandaMetrics metrics : SarabandaMetrics.registered()) {
+            sample(text, "sarabanda_commands_retransmitted_total", metrics, null, metrics.getCommandsRetransmitted());
+        }
+        header(text, "sarabanda_delivery_failures_total", "counter", "Comandi abbandonati senza conferma");
+        for (SarabandaMetrics metrics : SarabandaMetrics.registered()) {
+            sample(text, "sarabanda_delivery_failures_total", metrics, null, metrics.getDeliveryFailures());
+        }
+        header(text, "sarabanda_server_status", "gauge", "Stato del server: 0 avviato, 1 sconosciuto, 2 fermo");
+        for (SarabandaMetrics metrics : SarabandaMetrics.registered()) {
+            sample(text, "sarabanda_server_status", metrics, null, metrics.getServerStatus());
+        }
+        header(text, "sarabanda_button_state", "gauge", "Stato dei pulsanti: 0 abilitato, 1 premuto, 2 errore, 3 disabilitato");
+        for (SarabandaMetrics metrics : SarabandaMetrics.registered()) {
+            for (int i = 0; i < metrics.getController().getButtonNumber(); i++) {
+                sample(text, "sarabanda_button_state", metrics, "button=\"" + (i + 1) + "\"", metrics.getController().getButtonStatus(i).ordinal());
+            }
+        }
+        header(text, "sarabanda_commands_in_flight", "gauge", "Comandi in attesa di conferma");
+        for (SarabandaMetrics metrics : SarabandaMetrics.registered()) {
+            sample(text, "sarabanda_commands_in_flight", metrics, null, metrics.getCommandsInFlight());
+        }
+        header(text, "sarabanda_ui_queue_depth", "gauge", "Aggiornamenti in attesa di essere applicati alla UI");
+        for (SarabandaMetrics metrics : SarabandaMetrics.registered()) {
+            sample(text, "sarabanda_ui_queue_depth", metrics, null, metrics.getUiQueueDepth());
+        }
+
+        header(text, "sarabanda_latency_seconds", "summary", "Latenze delle fasi del percorso dei pacchetti");
+        for (LatencyStage stage : LatencyStage.values()) {
+            LatencyHistogram histogram = stage.histogram();
+            String label = "stage=\"" + stage.name() + "\"";
+            for (double quantile : QUANTILES) {
+                text.append("sarabanda_latency_seconds{").append(label).append(",quantile=\"").append(quantile).append("\"} ")
+                        .append(histogram.getValueAtPercentile(quantile * 100) / 1e9).append('\n');
+            }
+            text.append("sarabanda_latency_seconds_count{").append(label).append("} ").append(histogram.getCount()).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Scrive le righe HELP e TYPE di una metrica.
+     */
+    private static void header(StringBuilder text, String name, String type, String help) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * Scrive un valore con l'etichetta della partita e quelle aggiuntive.
+     */
+    private static void sample(StringBuilder text, String name, SarabandaMetrics metrics, String labels, long value) {
+        text.append(name).append("{game=\"").append(metrics.getName()).append('"');
+        if (labels != null) {
+            text.append(',').append(labels);
+        }
+        text.append("} ").append(value).append('\n');
+    }
+
+    /**
+     * Ferma l'endpoint.
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
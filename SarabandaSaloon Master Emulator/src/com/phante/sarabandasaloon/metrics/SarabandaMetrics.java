@@ -0,0 +1,347 @@
+/*
+ * Copyright 2015 Elvis Del Tedesco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.phante.sarabandasaloon.metrics;
+
+import com.phante.sarabandasaloon.network.SarabandaCommand;
+import com.phante.sarabandasaloon.network.SarabandaController;
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Metriche di un controller Sarabanda. I contatori sono LongAdder, per cui
+ * incrementarli dal thread di ricezione non introduce contesa con chi li
+ * legge; i valori istantanei vengono letti dal controller solo quando
+ * richiesti.
+ *
+ * Le metriche registrate con register sono esposte come MXBean con nome
+ * com.phante.sarabandasaloon:type=SarabandaMetrics,name=... e tramite
+ * PrometheusExporter. La registrazione su JMX avvia il server MBean della
+ * piattaforma, che costa qualche centinaio di millisecondi, per cui avviene
+ * su un thread dedicato e non ritarda l'avvio del controller.
+ *
+ * @author deltedes
+ */
+public class SarabandaMetrics implements SarabandaMetricsMXBean {
+
+    // Dominio JMX delle metriche
+    public static final String JMX_DOMAIN = "com.phante.sarabandasaloon";
+
+    private static final SarabandaCommand[] COMMANDS = SarabandaCommand.values();
+
+    // Metriche registrate per nome
+    private static final Map<String, SarabandaMetrics> REGISTERED = new ConcurrentHashMap<>();
+
+    // Controller a cui appartengono le metriche
+    private final SarabandaController controller;
+
+    private final LongAdder received = new LongAdder();
+    private final LongAdder invalid = new LongAdder();
+    private final LongAdder[] byCommand = new LongAdder[COMMANDS.length];
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder sendFailures = new LongAdder();
+    private final LongAdder pressesDiscarded = new LongAdder();
+    private final LongAdder ownIgnored = new LongAdder();
+    private final LongAdder stale = new LongAdder();
+    private final LongAdder retransmitted = new LongAdder();
+    private final LongAdder deliveryFailures = new LongAdder();
+
+    // Profondità della coda della UI, fornita dall'eventuale adattatore
+    private volatile LongSupplier uiQueueDepth = () -> 0;
+
+    // Nome con cui le metriche sono registrate
+    private volatile String name;
+
+    /**
+     *
+     * @param controller
+     */
+    public SarabandaMetrics(SarabandaController controller) {
+        this.controller = controller;
+        for (int i = 0; i < byCommand.length; i++) {
+            byCommand[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Conta un datagramma ricevuto.
+     */
+    public void packetReceived() {
+        received.increment();
+    }
+
+    /**
+     * Conta un datagramma che non è un messaggio Sarabanda.
+     */
+    public void packetInvalid() {
+        invalid.increment();
+    }
+
+    /**
+     * Conta un messaggio Sarabanda elaborato.
+     *
+     * @param command
+     */
+    public void commandReceived(SarabandaCommand command) {
+        byCommand[command.ordinal()].increment();
+    }
+
+    /**
+     * Conta un datagramma inviato.
+     */
+    public void packetSent() {
+        sent.increment();
+    }
+
+    /**
+     * Conta un invio fallito.
+     */
+    public void sendFailed() {
+        sendFailures.increment();
+    }
+
+    /**
+     * Conta una pressione che ha perso l'arbitraggio.
+     */
+    public void pressDiscarded() {
+        pressesDiscarded.increment();
+    }
+
+    /**
+     * Conta un pacchetto spedito dal controller stesso e ignorato.
+     */
+    public void ownPacketIgnored() {
+        ownIgnored.increment();
+    }
+
+    /**
+     * Conta un pacchetto scartato perché duplicato o fuori ordine.
+     */
+    public void stalePacketDropped() {
+        stale.increment();
+    }
+
+    /**
+     * Conta la ritrasmissione di un comando non ancora confermato.
+     */
+    public void commandRetransmitted() {
+        retransmitted.increment();
+    }
+
+    /**
+     * Conta un comando abbandonato senza conferma.
+     */
+    public void deliveryFailed() {
+        deliveryFailures.increment();
+    }
+
+    /**
+     * Imposta la lettura della profondità della coda della UI.
+     *
+     * @param depth
+     */
+    public void setUiQueueDepth(LongSupplier depth) {
+        uiQueueDepth = depth;
+    }
+
+    @Override
+    public long getPacketsReceived() {
+        return received.sum();
+    }
+
+    @Override
+    public long getPacketsInvalid() {
+        return invalid.sum();
+    }
+
+    /**
+     *
+     * @param command
+     * @return i messaggi elaborati con il comando indicato
+     */
+    public long getPackets(SarabandaCommand command) {
+        return byCommand[command.ordinal()].sum();
+    }
+
+    @Override
+    public Map<String, Long> getPacketsByCommand() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (SarabandaCommand command : COMMANDS) {
+            result.put(command.name(), getPackets(command));
+        }
+        return result;
+    }
+
+    @Override
+    public long getPacketsSent() {
+        return sent.sum();
+    }
+
+    @Override
+    public long getSendFailures() {
+        return sendFailures.sum();
+    }
+
+    @Override
+    public long getPressesDiscarded() {
+        return pressesDiscarded.sum();
+    }
+
+    @Override
+    public long getPacketsOwnIgnored() {
+        return ownIgnored.sum();
+    }
+
+    @Override
+    public long getPacketsStale() {
+        return stale.sum();
+    }
+
+    @Override
+    public long getCommandsRetransmitted() {
+        return retransmitted.sum();
+    }
+
+    @Override
+    public long getDeliveryFailures() {
+        return deliveryFailures.sum();
+    }
+
+    @Override
+    public int getCommandsInFlight() {
+        return controller.getCommandsInFlight();
+    }
+
+    @Override
+    public int getServerStatus() {
+        return controller.getServerStatus();
+    }
+
+    @Override
+    public String getButtonStates() {
+        StringBuilder states = new StringBuilder(controller.getButtonNumber());
+        for (int i = 0; i < controller.getButtonNumber(); i++) {
+            states.append(controller.getButtonStatus(i));
+        }
+        return states.toString();
+    }
+
+    @Override
+    public long getUiQueueDepth() {
+        return uiQueueDepth.getAsLong();
+    }
+
+    /**
+     *
+     * @return il controller a cui appartengono le metriche
+     */
+    public SarabandaController getController() {
+        return controller;
+    }
+
+    /**
+     *
+     * @return il nome di registrazione, null se non registrate
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Registra le metriche su JMX e per l'esportazione HTTP.
+     *
+     * @param name nome della partita, ad esempio master
+     */
+    public void register(String name) {
+        this.name = name;
+        REGISTERED.put(name, this);
+        JmxHolder.EXECUTOR.execute(() -> {
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName objectName = objectName(name);
+                if (!server.isRegistered(objectName)) {
+                    server.registerMBean(this, objectName);
+                }
+            } catch (JMException ex) {
+                Logger.getLogger(SarabandaMetrics.class.getName()).log(Level.WARNING, null, ex);
+            }
+        });
+    }
+
+    /**
+     * Rimuove la registrazione delle metriche.
+     */
+    public void unregister() {
+        String current = name;
+        if (current == null) {
+            return;
+        }
+        REGISTERED.remove(current, this);
+        name = null;
+        JmxHolder.EXECUTOR.execute(() -> {
+            try {
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                ObjectName objectName = objectName(current);
+                if (server.isRegistered(objectName)) {
+                    server.unregisterMBean(objectName);
+                }
+            } catch (JMException ex) {
+                Logger.getLogger(SarabandaMetrics.class.getName()).log(Level.WARNING, null, ex);
+            }
+        });
+    }
+
+    /**
+     * Thread delle registrazioni JMX, che le esegue nell'ordine richiesto.
+     */
+    private static class JmxHolder {
+        private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "sarabanda-jmx");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     *
+     * @return le metriche registrate
+     */
+    public static Collection<SarabandaMetrics> registered() {
+        return Collections.unmodifiableCollection(REGISTERED.values());
+    }
+
+    /**
+     *
+     * @param name
+     * @return il nome JMX delle metriche
+     * @throws JMException
+     */
+    private static ObjectName objectName(String name) throws JMException {
+        return new ObjectName(JMX_DOMAIN + ":type=SarabandaMetrics,name=" + ObjectName.quote(name));
+    }
+}
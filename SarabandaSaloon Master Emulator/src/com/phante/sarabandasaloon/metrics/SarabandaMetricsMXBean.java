@@ -0,0 +1,111 @@
+/*
+ * Copyright 2015 Elvis Del Tedesco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.phante.sarabandasaloon.metrics;
+
+import java.util.Map;
+
+/**
+ * Interfaccia JMX delle metriche di un controller Sarabanda.
+ *
+ * @author deltedes
+ */
+public interface SarabandaMetricsMXBean {
+
+    /**
+     *
+     * @return i datagrammi ricevuti
+     */
+    long getPacketsReceived();
+
+    /**
+     *
+     * @return i datagrammi che non sono messaggi Sarabanda
+     */
+    long getPacketsInvalid();
+
+    /**
+     *
+     * @return i messaggi Sarabanda elaborati per comando
+     */
+    Map<String, Long> getPacketsByCommand();
+
+    /**
+     *
+     * @return i datagrammi inviati
+     */
+    long getPacketsSent();
+
+    /**
+     *
+     * @return gli invii falliti
+     */
+    long getSendFailures();
+
+    /**
+     *
+     * @return le pressioni scartate dall'arbitraggio
+     */
+    long getPressesDiscarded();
+
+    /**
+     *
+     * @return i pacchetti spediti dal controller stesso e ignorati
+     */
+    long getPacketsOwnIgnored();
+
+    /**
+     *
+     * @return i pacchetti duplicati o fuori ordine secondo il numero di
+     * sequenza
+     */
+    long getPacketsStale();
+
+    /**
+     *
+     * @return le ritrasmissioni dei comandi non confermati
+     */
+    long getCommandsRetransmitted();
+
+    /**
+     *
+     * @return i comandi abbandonati senza conferma
+     */
+    long getDeliveryFailures();
+
+    /**
+     *
+     * @return i comandi in attesa di conferma
+     */
+    int getCommandsInFlight();
+
+    /**
+     *
+     * @return una delle costanti SERVER_* di SarabandaController
+     */
+    int getServerStatus();
+
+    /**
+     *
+     * @return lo stato dei pulsanti nel formato dei pacchetti B
+     */
+    String getButtonStates();
+
+    /**
+     *
+     * @return gli aggiornamenti in attesa di essere applicati alla UI
+     */
+    long getUiQueueDepth();
+}
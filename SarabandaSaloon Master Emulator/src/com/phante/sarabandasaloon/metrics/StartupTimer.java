@@ -0,0 +1,71 @@
+/*
+ * Copyright 2015 Elvis Del Tedesco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.phante.sarabandasaloon.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tempi delle fasi di avvio del processo, dall'avvio della JVM al server UDP
+ * in ascolto. Le fasi vengono segnate con mark nell'ordine in cui si
+ * completano; il riepilogo riporta per ognuna il tempo dall'avvio della JVM
+ * e quello dalla fase precedente.
+ *
+ * L'istante di avvio della JVM viene letto solo nel riepilogo, per non
+ * caricare le classi di gestione durante l'avvio.
+ *
+ * @author deltedes
+ */
+public class StartupTimer {
+
+    // Fasi segnate e relativi istanti, protetti dalla classe
+    private static final List<String> PHASES = new ArrayList<>();
+    private static final List<Long> NANOS = new ArrayList<>();
+
+    private StartupTimer() {
+    }
+
+    /**
+     * Segna la fine di una fase.
+     *
+     * @param phase
+     */
+    public static synchronized void mark(String phase) {
+        PHASES.add(phase);
+        NANOS.add(System.nanoTime());
+    }
+
+    /**
+     *
+     * @return il riepilogo delle fasi segnate, una per riga
+     */
+    public static synchronized String report() {
+        // Istante di avvio della JVM sulla scala di System.nanoTime
+        long now = System.nanoTime();
+        long jvmStart = now - ManagementFactory.getRuntimeMXBean().getUptime() * 1_000_000L;
+
+        StringBuilder report = new StringBuilder();
+        long previous = jvmStart;
+        for (int i = 0; i < PHASES.size(); i++) {
+            long at = NANOS.get(i);
+            report.append(String.format("%-12s %8.1f ms %+8.1f ms", PHASES.get(i), (at - jvmStart) / 1e6, (at - previous) / 1e6))
+                    .append(System.lineSeparator());
+            previous = at;
+        }
+        return report.toString();
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2015 Elvis Del Tedesco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.phante.sarabandasaloon.network;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Arbitraggio delle pressioni ricevute dalla rete. La prima pressione apre
+ * una finestra che dura windowNanos a partire dall'istante di ricezione del
+ * pacchetto; le pressioni che arrivano nella finestra concorrono e vince
+ * quella con l'istante di ricezione più basso. Alla chiusura della finestra
+ * il controller pubblica un solo pulsante premuto.
+ *
+ * La finestra viene chiusa dal thread di SarabandaScheduler, oppure prima
+ * della scadenza dal thread di ricezione quando arriva un pacchetto che non
+ * è una pressione, in modo da non alterare l'ordine dei comandi. Il ritardo aggiunto non supera quindi la finestra.
+ *
+ * @author deltedes
+ */
+class PressArbiter {
+
+    // Controller su cui pubblicare il vincitore
+    private final SarabandaController controller;
+    // Copia della pressione vincente, preallocata
+    private final SarabandaFrame winner = new SarabandaFrame();
+    // Chiusura della finestra alla scadenza, creata una sola volta
+    private final Runnable expire = this::expire;
+
+    // Durata della finestra, 0 per disattivare l'arbitraggio
+    private volatile long windowNanos;
+
+    // Stato della finestra, protetto da this
+    private boolean open;
+    private long deadline;
+
+    /**
+     *
+     * @param controller
+     * @param windowMicros
+     */
+    PressArbiter(SarabandaController controller, long windowMicros) {
+        this.controller = controller;
+        setWindow(windowMicros);
+    }
+
+    /**
+     *
+     * @param windowMicros 0 per disattivare l'arbitraggio
+     */
+    final void setWindow(long windowMicros) {
+        if (windowMicros < 0) {
+            throw new IllegalArgumentException("Finestra di arbitraggio non valida: " + windowMicros);
+        }
+        windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+    }
+
+    /**
+     *
+     * @return la durata della finestra in microsecondi
+     */
+    long getWindow() {
+        return TimeUnit.NANOSECONDS.toMicros(windowNanos);
+    }
+
+    /**
+     *
+     * @return true se l'arbitraggio è attivo
+     */
+    boolean isEnabled() {
+        return windowNanos > 0;
+    }
+
+    /**
+     * Sottopone una pressione all'arbitraggio.
+     *
+     * @param frame pacchetto pulsanti con almeno un pulsante premuto
+     * @return false se l'arbitraggio non è attivo e il pacchetto va elaborato
+     * subito
+     */
+    synchronized boolean offer(SarabandaFrame frame) {
+        long window = windowNanos;
+        if (window == 0) {
+            return false;
+        }
+        if (!open) {
+            open = true;
+            winner.copyFrom(frame);
+            deadline = frame.getReceivedNanos() + window;
+            schedule(deadline - System.nanoTime());
+            return true;
+        }
+
+        // Pressione concorrente nella finestra: vince la ricezione più vecchia
+        if (frame.getReceivedNanos() < winner.getReceivedNanos()) {
+            winner.copyFrom(frame);
+        }
+        controller.getMetrics().pressDiscarded();
+        return true;
+    }
+
+    /**
+     * Chiude subito la finestra aperta pubblicando il vincitore.
+     */
+    synchronized void flush() {
+        if (open) {
+            open = false;
+            controller.applyPress(winner);
+        }
+    }
+
+    /**
+     * Chiude la finestra alla scadenza. Se nel frattempo la finestra è stata
+     * chiusa e ne è stata aperta un'altra, attende la scadenza di quest'ultima.
+     */
+    private synchronized void expire() {
+        if (!open) {
+            return;
+        }
+        long remaining = deadline - System.nanoTime();
+        if (remaining > 0) {
+            schedule(remaining);
+            return;
+        }
+        open = false;
+        controller.applyPress(winner);
+    }
+
+    /**
+     * Pianifica la chiusura della finestra.
+     *
+     * @param delayNanos
+     */
+    private void schedule(long delayNanos) {
+        SarabandaScheduler.getInstance().schedule(expire, Math.max(0, delayNanos), TimeUnit.NANOSECONDS);
+    }
+}
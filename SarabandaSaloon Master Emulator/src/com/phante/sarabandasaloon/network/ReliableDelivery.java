@@ -0,0 +1,225 @@
+/*
+ * Copyright 2015 Elvis Del Tedesco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.phante.sarabandasaloon.network;
+
+import com.phante.sarabandasaloon.metrics.SarabandaMetrics;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Consegna affidabile dei comandi RESET, FULLRESET ed ERROR. Ogni comando
+ * parte con un numero di sequenza e resta in una finestra di dimensione
+ * fissa finché non arriva la conferma SRBND-A con lo stesso numero; i
+ * comandi non confermati entro il timeout vengono ritrasmessi con lo stesso
+ * numero, raddoppiando il timeout a ogni tentativo.
+ *
+ * Il timeout si adatta al tempo di andata e ritorno misurato come in TCP
+ * (RFC 6298), campionando solo i comandi confermati al primo invio. Non ci
+ * sono timer per i singoli comandi: un unico controllo periodico sul thread
+ * di SarabandaScheduler scorre la finestra, e resta attivo solo finché la
+ * finestra non è vuota.
+ *
+ * I pacchetti B non passano da qui e restano senza conferma.
+ *
+ * @author deltedes
+ */
+class ReliableDelivery {
+
+    // Comandi in volo al massimo
+    static final int WINDOW = 16;
+    // Tentativi prima di rinunciare a un comando
+    static final int MAX_ATTEMPTS = 8;
+    // Limiti e valore iniziale del timeout di ritrasmissione
+    static final long MIN_RTO_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    static final long MAX_RTO_NANOS = TimeUnit.SECONDS.toNanos(2);
+    static final long INITIAL_RTO_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    // Intervallo del controllo della finestra
+    static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+
+    private final SarabandaSender sender;
+    private final SarabandaMetrics metrics;
+
+    // Finestra dei comandi in volo, un comando null indica una posizione libera
+    private final SarabandaCommand[] commands = new SarabandaCommand[WINDOW];
+    private final int[] sequences = new int[WINDOW];
+    private final long[] firstSentNanos = new long[WINDOW];
+    private final long[] deadlines = new long[WINDOW];
+    private final int[] attempts = new int[WINDOW];
+    private int inFlight;
+
+    // Stima del tempo di andata e ritorno
+    private long srttNanos;
+    private long rttvarNanos;
+    private long rtoNanos = INITIAL_RTO_NANOS;
+
+    // Controllo periodico della finestra, null quando è vuota
+    private ScheduledFuture<?> tick;
+
+    /**
+     *
+     * @param sender
+     * @param metrics
+     */
+    ReliableDelivery(SarabandaSender sender, SarabandaMetrics metrics) {
+        this.sender = sender;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Invia un comando e lo mantiene nella finestra fino alla conferma. Con
+     * la finestra piena il comando viene inviato senza attendere conferma.
+     *
+     * @param command
+     * @return false se la finestra è piena
+     */
+    synchronized boolean send(SarabandaCommand command) {
+        int sequence = sender.nextSequence();
+        int slot = freeSlot();
+        if (slot < 0) {
+            sender.sendCommand(command, sequence);
+            Logger.getLogger(ReliableDelivery.class.getName()).log(Level.WARNING, "Finestra piena, {0} inviato senza conferma", command);
+            return false;
+        }
+
+        long now = System.nanoTime();
+        commands[slot] = command;
+        sequences[slot] = sequence;
+        firstSentNanos[slot] = now;
+        deadlines[slot] = now + rtoNanos;
+        attempts[slot] = 1;
+        inFlight++;
+        sender.sendCommand(command, sequence);
+
+        if (tick == null) {
+            tick = SarabandaScheduler.getInstance().scheduleAtFixedRate(this::retransmit, TICK_NANOS, TICK_NANOS, TimeUnit.NANOSECONDS);
+        }
+        return true;
+    }
+
+    /**
+     * Registra la conferma di un comando.
+     *
+     * @param command
+     * @param sequence
+     */
+    synchronized void acknowledged(SarabandaCommand command, int sequence) {
+        for (int i = 0; i < WINDOW; i++) {
+            if (commands[i] == command && sequences[i] == sequence) {
+                // Le ritrasmissioni non danno un campione affidabile
+                if (attempts[i] == 1) {
+                    sample(System.nanoTime() - firstSentNanos[i]);
+                }
+                release(i);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Aggiorna la stima del tempo di andata e ritorno e il timeout.
+     *
+     * @param rttNanos
+     */
+    private void sample(long rttNanos) {
+        if (srttNanos == 0) {
+            srttNanos = rttNanos;
+            rttvarNanos = rttNanos / 2;
+        } else {
+            rttvarNanos += (Math.abs(srttNanos - rttNanos) - rttvarNanos) / 4;
+            srttNanos += (rttNanos - srttNanos) / 8;
+        }
+        rtoNanos = Math.min(MAX_RTO_NANOS, Math.max(MIN_RTO_NANOS, srttNanos + 4 * rttvarNanos));
+    }
+
+    /**
+     * Ritrasmette i comandi scaduti, invocato periodicamente.
+     */
+    private synchronized void retransmit() {
+        long now = System.nanoTime();
+        for (int i = 0; i < WINDOW; i++) {
+            if (commands[i] == null || now - deadlines[i] < 0) {
+                continue;
+            }
+            if (attempts[i] >= MAX_ATTEMPTS) {
+                metrics.deliveryFailed();
+                Logger.getLogger(ReliableDelivery.class.getName()).log(Level.WARNING, "{0} con sequenza {1} non confermato dopo {2} tentativi", new Object[]{commands[i], sequences[i] & 0xFFFFFFFFL, attempts[i]});
+                release(i);
+                continue;
+            }
+            attempts[i]++;
+            deadlines[i] = now + Math.min(MAX_RTO_NANOS, rtoNanos << (attempts[i] - 1));
+            metrics.commandRetransmitted();
+            sender.sendCommand(commands[i], sequences[i]);
+        }
+    }
+
+    /**
+     *
+     * @return la prima posizione libera della finestra, -1 se è piena
+     */
+    private int freeSlot() {
+        for (int i = 0; i < WINDOW; i++) {
+            if (commands[i] == null) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Libera una posizione della finestra e ferma il controllo periodico se
+     * la finestra è vuota.
+     *
+     * @param slot
+     */
+    private void release(int slot) {
+        commands[slot] = null;
+        inFlight--;
+        if (inFlight == 0 && tick != null) {
+            tick.cancel(false);
+            tick = null;
+        }
+    }
+
+    /**
+     *
+     * @return il numero di comandi in attesa di conferma
+     */
+    synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     *
+     * @return il timeout di ritrasmissione corrente in nanosecondi
+     */
+    synchronized long getRetransmitTimeout() {
+        return rtoNanos;
+    }
+
+    /**
+     * Rinuncia a tutti i comandi in volo.
+     */
+    synchronized void close() {
+        for (int i = 0; i < WINDOW; i++) {
+            if (commands[i] != null) {
+                release(i);
+            }
+        }
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright 2015 Elvis Del Tedesco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.phante.sarabandasaloon.network;
+
+import com.phante.sarabandasaloon.entity.PushButtonBoard;
+import com.phante.sarabandasaloon.entity.PushButtonStatus;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Codifica e decodifica dei pacchetti Sarabanda lavorando direttamente sui
+ * byte, senza espressioni regolari e senza allocazioni.
+ *
+ * Un pacchetto pulsanti è valido solo se è composto esattamente dall'header,
+ * dal comando B e da un carattere di stato per ogni pulsante, come richiedeva
+ * l'espressione regolare usata in precedenza. Per gli altri comandi conta solo
+ * il primo carattere dopo l'header, ad eccezione di DEMO che deve essere
+ * presente per intero.
+ *
+ * Un pacchetto può terminare con il numero di sequenza del mittente nella
+ * forma :N, con N intero senza segno a 32 bit; il numero viene tolto prima
+ * di validare il comando, per cui i pacchetti senza numero restano validi.
+ * La conferma di un comando è composta dal comando A, dalla lettera del
+ * comando confermato e dal suo numero di sequenza, ad esempio SRBND-AR:12.
+ *
+ * @author deltedes
+ */
+public class SarabandaCodec {
+
+    // Header in formato binario
+    static final byte[] HEADER = SarabandaController.MESSAGE_HEADER.getBytes(StandardCharsets.US_ASCII);
+    // Posizione del carattere di comando
+    static final int COMMAND_OFFSET = HEADER.length;
+    // Posizione del primo stato dei pulsanti nei pacchetti B
+    static final int BUTTON_OFFSET = COMMAND_OFFSET + 1;
+
+    // Separatore del numero di sequenza
+    static final byte SEQUENCE_SEPARATOR = ':';
+    // Cifre massime di un numero di sequenza
+    private static final int SEQUENCE_DIGITS = 10;
+
+    private static final byte[] DEMO = SarabandaController.DEMO_COMMAND.getBytes(StandardCharsets.US_ASCII);
+
+    // Numero dei pulsanti gestiti
+    private final int buttonNumber;
+
+    /**
+     *
+     * @param buttonNumber
+     */
+    public SarabandaCodec(int buttonNumber) {
+        this.buttonNumber = buttonNumber;
+    }
+
+    /**
+     *
+     * @return
+     */
+    public int getButtonNumber() {
+        return buttonNumber;
+    }
+
+    /**
+     * Decodifica il pacchetto contenuto nel frame impostandone il comando.
+     *
+     * @param frame
+     * @return il comando, INVALID se il pacchetto ha l'header corretto ma un
+     * comando sconosciuto, null se non è un pacchetto Sarabanda
+     */
+    public SarabandaCommand decode(SarabandaFrame frame) {
+        int length = frame.length;
+        int separator = sequenceSeparator(frame.data, length);
+        if (separator >= 0) {
+            long sequence = 0;
+            for (int i = separator + 1; i < length; i++) {
+                sequence = sequence * 10 + (frame.data[i] - '0');
+            }
+            frame.sequence = (int) sequence;
+            frame.sequenced = true;
+            length = separator;
+        } else {
+            frame.sequenced = false;
+        }
+
+        frame.command = decode(frame.data, length);
+        if (frame.command == SarabandaCommand.BUTTON) {
+            buttonWords(frame.data, frame.buttonWords);
+        }
+        return frame.command;
+    }
+
+    /**
+     * Decodifica il pacchetto contenuto nei primi length byte di data.
+     *
+     * @param data
+     * @param length
+     * @return il comando, INVALID se il pacchetto ha l'header corretto ma un
+     * comando sconosciuto, null se non è un pacchetto Sarabanda
+     */
+    public SarabandaCommand decode(byte[] data, int length) {
+        if (length <= COMMAND_OFFSET) {
+            return null;
+        }
+        for (int i = 0; i < COMMAND_OFFSET; i++) {
+            if (data[i] != HEADER[i]) {
+                return null;
+            }
+        }
+
+        switch (data[COMMAND_OFFSET]) {
+            case 'B':
+                if (length != BUTTON_OFFSET + buttonNumber) {
+                    return SarabandaCommand.INVALID;
+                }
+                for (int i = BUTTON_OFFSET; i < length; i++) {
+                    if (PushButtonStatus.fromCode(data[i]) == null) {
+                        return SarabandaCommand.INVALID;
+                    }
+                }
+                return SarabandaCommand.BUTTON;
+            case 'R':
+                return SarabandaCommand.RESET;
+            case 'F':
+                return SarabandaCommand.FULLRESET;
+            case 'E':
+                return SarabandaCommand.ERROR;
+            case 'X':
+                return SarabandaCommand.HWRESET;
+            case 'A':
+                if (length != COMMAND_OFFSET + 2 || acknowledged(data[COMMAND_OFFSET + 1]) == null) {
+                    return SarabandaCommand.INVALID;
+                }
+                return SarabandaCommand.ACK;
+            case 'D':
+                if (length < COMMAND_OFFSET + DEMO.length) {
+                    return SarabandaCommand.INVALID;
+                }
+                for (int i = 1; i < DEMO.length; i++) {
+                    if (data[COMMAND_OFFSET + i] != DEMO[i]) {
+                        return SarabandaCommand.INVALID;
+                    }
+                }
+                return SarabandaCommand.DEMO;
+            default:
+                return SarabandaCommand.INVALID;
+        }
+    }
+
+    /**
+     * Restituisce il comando confermato da un pacchetto ACK già validato.
+     *
+     * @param frame
+     * @return
+     */
+    public static SarabandaCommand acknowledgedCommand(SarabandaFrame frame) {
+        return acknowledged(frame.data[COMMAND_OFFSET + 1]);
+    }
+
+    /**
+     *
+     * @param code
+     * @return il comando che può essere confermato con la lettera indicata,
+     * null se la lettera non corrisponde a nessuno
+     */
+    private static SarabandaCommand acknowledged(byte code) {
+        switch (code) {
+            case 'R':
+                return SarabandaCommand.RESET;
+            case 'F':
+                return SarabandaCommand.FULLRESET;
+            case 'E':
+                return SarabandaCommand.ERROR;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Cerca il separatore del numero di sequenza in fondo al pacchetto.
+     *
+     * @param data
+     * @param length
+     * @return la posizione del separatore, -1 se il pacchetto non ha un
+     * numero di sequenza
+     */
+    private static int sequenceSeparator(byte[] data, int length) {
+        int i = length - 1;
+        while (i > COMMAND_OFFSET && data[i] >= '0' && data[i] <= '9') {
+            i--;
+        }
+        int digits = length - 1 - i;
+        if (digits == 0 || digits > SEQUENCE_DIGITS || data[i] != SEQUENCE_SEPARATOR || i <= COMMAND_OFFSET) {
+            return -1;
+        }
+        return i;
+    }
+
+    /**
+     * Restituisce lo stato di un pulsante da un pacchetto B già validato.
+     *
+     * @param data
+     * @param button
+     * @return
+     */
+    public static PushButtonStatus buttonStatus(byte[] data, int button) {
+        return PushButtonStatus.fromCode(data[BUTTON_OFFSET + button]);
+    }
+
+    /**
+     * Raccoglie gli stati di un pacchetto B già validato in parole con 2 bit
+     * per pulsante, nel formato di PushButtonBoard.
+     *
+     * @param data
+     * @param words
+     */
+    public void buttonWords(byte[] data, long[] words) {
+        for (int w = 0; w < PushButtonBoard.wordCount(buttonNumber); w++) {
+            long word = 0;
+            int first = w * PushButtonBoard.BUTTONS_PER_WORD;
+            int last = Math.min(first + PushButtonBoard.BUTTONS_PER_WORD, buttonNumber);
+            for (int i = first; i < last; i++) {
+                word |= (long) buttonStatus(data, i).ordinal() << (PushButtonBoard.BITS_PER_BUTTON * (i - first));
+            }
+            words[w] = word;
+        }
+    }
+
+    /**
+     * Scrive nel buffer un comando senza parametri.
+     *
+     * @param command
+     * @param dst
+     */
+    public void encode(SarabandaCommand command, ByteBuffer dst) {
+        dst.put(HEADER);
+        String text = command.text();
+        for (int i = 0; i < text.length(); i++) {
+            dst.put((byte) text.charAt(i));
+        }
+    }
+
+    /**
+     * Scrive nel buffer un pacchetto B con lo stato dei pulsanti.
+     *
+     * @param statuses
+     * @param dst
+     */
+    public void encodeButtons(PushButtonStatus[] statuses, ByteBuffer dst) {
+        dst.put(HEADER);
+        dst.put((byte) 'B');
+        for (int i = 0; i < buttonNumber; i++) {
+            dst.put(statuses[i].code());
+        }
+    }
+
+    /**
+     * Scrive nel buffer un pacchetto B leggendo lo stato dei pulsanti da un
+     * PushButtonBoard.
+     *
+     * @param board
+     * @param pressedButton pulsante da considerare premuto, -1 per nessuno
+     * @param dst
+     */
+    public void encodeButtons(PushButtonBoard board, int pressedButton, ByteBuffer dst) {
+        dst.put(HEADER);
+        dst.put((byte) 'B');
+        for (int w = 0; w < board.wordCount(); w++) {
+            long word = board.getWord(w);
+            int first = w * PushButtonBoard.BUTTONS_PER_WORD;
+            int last = Math.min(first + PushButtonBoard.BUTTONS_PER_WORD, buttonNumber);
+            for (int i = first; i < last; i++) {
+                PushButtonStatus status = (i == pressedButton) ? PushButtonStatus.PRESSED : PushButtonBoard.status(word, i - first);
+                dst.put(status.code());
+            }
+        }
+    }
+
+    /**
+     * Scrive nel buffer la conferma di un comando.
+     *
+     * @param command RESET, FULLRESET o ERROR
+     * @param sequence numero di sequenza del comando confermato
+     * @param dst
+     */
+    public void encodeAck(SarabandaCommand command, int sequence, ByteBuffer dst) {
+        dst.put(HEADER);
+        dst.put((byte) 'A');
+        dst.put((byte) command.text().charAt(0));
+        encodeSequence(sequence, dst);
+    }
+
+    /**
+     * Aggiunge al pacchetto nel buffer il numero di sequenza.
+     *
+     * @param sequence interpretato senza segno
+     * @param dst
+     */
+    public void encodeSequence(int sequence, ByteBuffer dst) {
+        dst.put(SEQUENCE_SEPARATOR);
+        long value = sequence & 0xFFFFFFFFL;
+        long divisor = 1;
+        while (divisor * 10 <= value) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            dst.put((byte) ('0' + (value / divisor) % 10));
+        }
+    }
+
+    /**
+     *
+     * @return la dimensione di un pacchetto B
+     */
+    public int buttonFrameLength() {
+        return BUTTON_OFFSET + buttonNumber;
+    }
+}
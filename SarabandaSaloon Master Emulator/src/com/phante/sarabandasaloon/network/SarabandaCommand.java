@@ -0,0 +1,48 @@
+/*
+ * Copyright 2015 Elvis Del Tedesco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.phante.sarabandasaloon.network;
+
+/**
+ * Comandi del protocollo Sarabanda.
+ *
+ * @author deltedes
+ */
+public enum SarabandaCommand {
+    BUTTON(SarabandaController.BUTTON_COMMAND),
+    RESET(SarabandaController.RESET_COMMAND),
+    FULLRESET(SarabandaController.FULLRESET_COMMAND),
+    ERROR(SarabandaController.ERROR_COMMAND),
+    DEMO(SarabandaController.DEMO_COMMAND),
+    HWRESET(SarabandaController.HWRESET_COMMAND),
+    // Conferma di ricezione di un comando inviato con numero di sequenza
+    ACK(SarabandaController.ACK_COMMAND),
+    // Pacchetto con header corretto ma comando non riconosciuto
+    INVALID("");
+
+    private final String text;
+
+    private SarabandaCommand(String text) {
+        this.text = text;
+    }
+
+    /**
+     *
+     * @return il testo del comando così come viene spedito dopo l'header
+     */
+    public String text() {
+        return text;
+    }
+}
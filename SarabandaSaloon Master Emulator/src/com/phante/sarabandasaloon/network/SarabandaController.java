@@ -15,28 +15,40 @@
  */
 package com.phante.sarabandasaloon.network;
 
-import com.phante.sarabandasaloon.entity.PushButton;
+import com.phante.sarabandasaloon.entity.PushButtonBoard;
 import com.phante.sarabandasaloon.entity.PushButtonStatus;
-import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import com.phante.sarabandasaloon.metrics.LatencyStage;
+import com.phante.sarabandasaloon.metrics.SarabandaMetrics;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javafx.application.Platform;
-import javafx.beans.property.ReadOnlyBooleanProperty;
-import javafx.beans.property.ReadOnlyBooleanWrapper;
-import javafx.beans.property.ReadOnlyIntegerProperty;
-import javafx.beans.property.ReadOnlyIntegerWrapper;
-import javafx.beans.property.ReadOnlyStringProperty;
-import javafx.beans.property.ReadOnlyStringWrapper;
-import javafx.collections.FXCollections;
-import javafx.collections.ObservableList;
-import javafx.concurrent.Worker;
 
 /**
+ * Nucleo del controller Sarabanda, indipendente da JavaFX. Lo stato viene
+ * esposto tramite metodi di lettura e notificato ai SarabandaListener
+ * registrati; le interfacce grafiche vi si appoggiano tramite un adattatore.
+ *
+ * Lo stato dei pulsanti viene inviato solo quando un pacchetto lo modifica,
+ * più un reinvio completo quando la rete resta in silenzio per
+ * RESYNC_INTERVAL_PROPERTY millisecondi. I pacchetti spediti dal controller
+ * stesso, che in broadcast o in modalità classica tornano indietro, vengono
+ * ignorati, così come quelli con un numero di sequenza già visto.
+ *
+ * I comandi RESET, FULLRESET ed ERROR ricevuti con un numero di sequenza
+ * vengono confermati; se RELIABLE_PROPERTY è attiva quelli inviati vengono
+ * ritrasmessi finché non arriva la conferma, vedi ReliableDelivery.
  *
  * @author deltedes
  */
@@ -47,83 +59,136 @@ public class SarabandaController {
     public final static int SERVER_UNKNOWN = 1;
     public final static int SERVER_STOPPED = 2;
 
-    // Numero dei pulsanti del sarabanda
-    private final static int BUTTON_NUMBER = 4;
+    // Numero predefinito dei pulsanti del sarabanda
+    public final static int DEFAULT_BUTTON_NUMBER = 4;
+
+    // Proprietà di sistema con la finestra di arbitraggio delle pressioni in
+    // microsecondi, 0 per applicare le pressioni appena ricevute
+    public static final String ARBITRATION_WINDOW_PROPERTY = "sarabanda.arbitration.window";
+    // Proprietà di sistema per aggiungere il numero di sequenza ai pacchetti inviati
+    public static final String SEQUENCE_PROPERTY = "sarabanda.sequence";
+    // Proprietà di sistema con l'intervallo del reinvio dello stato in
+    // millisecondi, 0 per disattivarlo
+    public static final String RESYNC_INTERVAL_PROPERTY = "sarabanda.resync.interval";
+    public static final long DEFAULT_RESYNC_INTERVAL = 1000;
+    // Proprietà di sistema per la consegna con conferma di RESET, FULLRESET ed ERROR
+    public static final String RELIABLE_PROPERTY = "sarabanda.reliable";
+    // Gruppo multicast predefinito, nell'ambito locale dell'organizzazione
+    public static final String DEFAULT_MULTICAST_GROUP = "239.255.83.66";
 
-    protected final static int UDP_MASTER_PORT = 8888;
-    protected final static int UDP_SLAVE_PORT = 8889;
-    protected final static int UDP_SLAVE_CLASSIC_PORT = 8888;
+    public final static int UDP_MASTER_PORT = 8888;
+    public final static int UDP_SLAVE_PORT = 8889;
+    public final static int UDP_SLAVE_CLASSIC_PORT = 8888;
 
     // Header standard del pacchetto Sarabanda
-    final static String MESSAGE_HEADER = "SRBND-";
+    public final static String MESSAGE_HEADER = "SRBND-";
 
     // Comandi sarabanda validi
-    final static String RESET_COMMAND = "RESET";
-    final static String FULLRESET_COMMAND = "FULLRESET";
-    final static String ERROR_COMMAND = "ERROR";
-    final static String DEMO_COMMAND = "DEMO";
-    final static String HWRESET_COMMAND = "X";
-    final static String BUTTON_COMMAND = "B";
+    public final static String RESET_COMMAND = "RESET";
+    public final static String FULLRESET_COMMAND = "FULLRESET";
+    public final static String ERROR_COMMAND = "ERROR";
+    public final static String DEMO_COMMAND = "DEMO";
+    public final static String HWRESET_COMMAND = "X";
+    public final static String BUTTON_COMMAND = "B";
+    public final static String ACK_COMMAND = "A";
 
-    final String buttonCommandRegex;
+    // Codec per i pacchetti Sarabanda
+    protected final SarabandaCodec codec;
+    // Canale di invio con i pacchetti precalcolati
+    protected final SarabandaSender sender;
+    // Log strutturato degli eventi dei pacchetti
+    protected final SarabandaEventLog eventLog = SarabandaEventLog.getInstance();
+    // Contatori e valori esportati su JMX e HTTP
+    protected final SarabandaMetrics metrics;
+    // Arbitraggio delle pressioni concorrenti
+    private final PressArbiter arbiter;
+    // Ultimi numeri di sequenza ricevuti per mittente
+    private final SequenceFilter sequences = new SequenceFilter();
+    // Consegna con conferma dei comandi critici
+    private final ReliableDelivery reliable;
+    private volatile boolean reliableCommands;
+    // Intervallo del reinvio dello stato
+    private final long resyncNanos;
+    // Reinvio periodico dello stato, null se non attivo
+    private ScheduledFuture<?> resync;
+    // Istante dell'ultimo invio dello stato
+    private volatile long lastStatusNanos = System.nanoTime();
 
     // Porta di invio
     protected int udpSendPort;
     // Porta di ascolto
     protected int udpListenPort;
+    // Porte di ascolto aggiuntive, protette da se stesse
+    private final Set<Integer> extraListenPorts = new LinkedHashSet<>();
     // Memorizzare l'indirizzo di broadcast, impostata di default come loopback per sicurezza
     protected InetAddress broadcastAddress;
 
     // Server UDP per la comunicazione con il master
     protected UDPServerService udpservice;
+    // Giornale dei pacchetti, null se non attivo
+    protected volatile SarabandaJournal journal;
+    // Storia delle transizioni dei pulsanti, null se non attiva
+    protected volatile SarabandaStateLog stateLog;
 
     // Imposta la modalità classica
-    protected final ReadOnlyBooleanWrapper classicModeProperty = new ReadOnlyBooleanWrapper();
+    protected volatile boolean classicMode;
     // Identifica il funzionamento su solo localhost senza usare il broadcast
-    protected final ReadOnlyBooleanWrapper onlyLocalhostModeProperty = new ReadOnlyBooleanWrapper();
+    protected volatile boolean onlyLocalhostMode;
+    // Gruppo multicast e relativa interfaccia, null se si usa il broadcast
+    protected volatile InetAddress multicastGroup;
+    protected volatile NetworkInterface multicastInterface;
 
     // Memorizza lo stato del server
-    protected final ReadOnlyIntegerWrapper serverStatus = new ReadOnlyIntegerWrapper();
-    // Memorizza l'ultimo messaggio arrivato
-    protected final ReadOnlyStringWrapper message = new ReadOnlyStringWrapper();
+    protected volatile int serverStatus = SERVER_STOPPED;
     // Stato dei pulsanti
-    protected final ObservableList<PushButton> buttons = FXCollections.observableArrayList();
+    protected final PushButtonBoard buttons;
+
+    // Destinatari degli eventi del controller
+    private final List<SarabandaListener> listeners = new CopyOnWriteArrayList<>();
 
     /**
      * Inizializza lo stato del controller andando a creare il servizio che si
      * occupa della lettura dei pacchetti di rete e i pulsanti.
      */
     protected SarabandaController() {
-        Logger.getLogger(SarabandaController.class.getName()).log(Level.INFO, "Inizializzo il controller");
+        this(DEFAULT_BUTTON_NUMBER);
+    }
+
+    /**
+     * Inizializza lo stato del controller per un tabellone con il numero di
+     * pulsanti indicato.
+     *
+     * @param buttonNumber da 1 a PushButtonBoard.MAX_BUTTONS
+     */
+    protected SarabandaController(int buttonNumber) {
+        Logger.getLogger(SarabandaController.class.getName()).log(Level.INFO, "Inizializzo il controller con {0} pulsanti", buttonNumber);
 
         // Imposta la modalità di funzionamento a nuovo
         udpSendPort = UDP_SLAVE_PORT;
         udpListenPort = UDP_MASTER_PORT;
-        classicModeProperty.setValue(Boolean.FALSE);
+        classicMode = false;
 
         // Imposta la modalità solo localhost
         broadcastAddress = InetAddress.getLoopbackAddress();
-        onlyLocalhostModeProperty.setValue(Boolean.TRUE);
+        onlyLocalhostMode = true;
 
         // Crea i pulsanti del sarabanda
-        for (int i = 0; i < BUTTON_NUMBER; i++) {
-            buttons.add(new PushButton());
-        }
+        buttons = new PushButtonBoard(buttonNumber);
 
-        // Espressione regolare per identificare un pacchetto pulsanti valido
-        StringBuffer regex = new StringBuffer()
-                .append("^")
-                .append(MESSAGE_HEADER)
-                .append(BUTTON_COMMAND)
-                .append("[");
-        for (PushButtonStatus status : PushButtonStatus.values()) {
-            regex.append(status);
-        }
-        regex.append("]{")
-                .append(buttons.size())
-                .append("}");
+        // Il codec riconosce come pacchetto pulsanti valido solo l'header
+        // seguito dal comando e da uno stato per ogni pulsante
+        codec = new SarabandaCodec(buttons.size());
+        sender = new SarabandaSender(codec);
+        sender.setDestination(broadcastAddress, udpSendPort);
+        sender.setSequenced(Boolean.getBoolean(SEQUENCE_PROPERTY));
+        resyncNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong(RESYNC_INTERVAL_PROPERTY, DEFAULT_RESYNC_INTERVAL));
+
+        metrics = new SarabandaMetrics(this);
+        sender.setMetrics(metrics);
+        reliable = new ReliableDelivery(sender, metrics);
+        reliableCommands = Boolean.getBoolean(RELIABLE_PROPERTY);
 
-        buttonCommandRegex = regex.toString();
+        arbiter = new PressArbiter(this, Long.getLong(ARBITRATION_WINDOW_PROPERTY, 0));
     }
 
     /**
@@ -131,71 +196,412 @@ public class SarabandaController {
      */
     protected void initUDPService() {
         Logger.getLogger(SarabandaController.class.getName()).log(Level.INFO, "Inizializzo il processo listener su {0}", udpSendPort);
-        try {
-            InetAddress localAddress = InetAddress.getLocalHost();
-
-            // Creo il servizio
-            udpservice = new UDPServerService(udpListenPort);
-
-            // Listener per identificare l'arrivio di un nuovo pacchetto
-            udpservice.packetProperty().addListener(((observableValue, oldValue, newValue) -> {
-                // Ignoro i messaggi che arrivano da me stesso
-                //if (localAddress.getHostAddress().equals(udpservice.senderProperty().getValue())) 
-                {
-                    // Effettua il parsing del messaggio il messaggio, uso il runLater 
-                    // per disaccoppiare i thread e consentire la modifica della UI
-                    // dal thread principale
-                    Platform.runLater(() -> {
-                        message.setValue(newValue);
-                        parseMessage(newValue);
-                    });
-                }
-            }));
-        } catch (UnknownHostException ex) {
-            Logger.getLogger(SarabandaController.class.getName()).log(Level.SEVERE, null, ex);
+        // Creo il servizio
+        udpservice = new UDPServerService(udpListenPort, codec);
+        synchronized (extraListenPorts) {
+            for (int port : extraListenPorts) {
+                udpservice.addPort(port);
+            }
+        }
+        udpservice.setJournal(journal);
+        udpservice.setMetrics(metrics);
+        if (multicastGroup != null) {
+            udpservice.setMulticast(multicastGroup, multicastInterface);
         }
 
+        // Effettua il parsing direttamente sul thread di ricezione, l'eventuale
+        // UI si occupa di passare al proprio thread
+        udpservice.setOnFrame(this::handleFrame);
+
         // Idetifico lo stato del server
-        udpservice.setOnRunning(value -> {
-            serverStatus.setValue(SERVER_STARTED);
-        });
-        udpservice.setOnScheduled(value -> {
-            serverStatus.setValue(SERVER_UNKNOWN);
-        });
-        udpservice.setOnReady(value -> {
-            serverStatus.setValue(SERVER_STOPPED);
-        });
-        udpservice.setOnCancelled(value -> {
-            serverStatus.setValue(SERVER_STOPPED);
-        });
-        udpservice.setOnFailed(value -> {
-            serverStatus.setValue(SERVER_STOPPED);
+        udpservice.setOnStatus(status -> {
+            serverStatus = status;
+            for (SarabandaListener listener : listeners) {
+                listener.serverStatusChanged(status);
+            }
         });
     }
 
+    /**
+     * Elabora un pacchetto già decodificato: lo notifica ai listener e ne
+     * applica gli effetti sullo stato dei pulsanti. Le pressioni passano
+     * dall'arbitraggio, gli altri pacchetti chiudono prima l'eventuale
+     * finestra aperta per mantenere l'ordine di arrivo.
+     *
+     * @param frame
+     */
+    protected void handleFrame(SarabandaFrame frame) {
+        // Ignoro i messaggi che arrivano da me stesso
+        if (isOwnFrame(frame)) {
+            metrics.ownPacketIgnored();
+            return;
+        }
+        SarabandaCommand command = frame.getCommand();
+        if (command == SarabandaCommand.ACK) {
+            metrics.commandReceived(command);
+            if (frame.hasSequence()) {
+                reliable.acknowledged(SarabandaCodec.acknowledgedCommand(frame), frame.getSequence());
+            }
+            return;
+        }
+        // La conferma va inviata anche per le ritrasmissioni già elaborate,
+        // altrimenti il mittente continuerebbe a ritrasmettere
+        if (frame.hasSequence() && (command == SarabandaCommand.RESET || command == SarabandaCommand.FULLRESET || command == SarabandaCommand.ERROR)) {
+            sender.sendAck(command, frame.getSequence());
+        }
+        if (frame.hasSequence() && !sequences.accept(frame.getSender(), frame.getSequence())) {
+            metrics.stalePacketDropped();
+            return;
+        }
+
+        metrics.commandReceived(command);
+        eventLog.received(udpListenPort, frame, buttons.size());
+        for (SarabandaListener listener : listeners) {
+            listener.messageReceived(frame);
+        }
+        if (arbiter.isEnabled()) {
+            if (isNewPress(frame) && arbiter.offer(frame)) {
+                return;
+            }
+            arbiter.flush();
+        }
+        parseMessage(frame);
+    }
+
+    /**
+     * Verifica se un pacchetto è stato spedito dal canale di invio di questo
+     * controller.
+     *
+     * @param frame
+     * @return
+     */
+    private boolean isOwnFrame(SarabandaFrame frame) {
+        if (!(frame.getSender() instanceof InetSocketAddress)) {
+            return false;
+        }
+        InetSocketAddress from = (InetSocketAddress) frame.getSender();
+        return from.getPort() == sender.getLocalPort() && LocalAddressesHolder.ADDRESSES.contains(from.getAddress());
+    }
+
+    /**
+     * Indirizzi delle interfacce di rete locali, letti una sola volta.
+     */
+    private static class LocalAddressesHolder {
+        private static final Set<InetAddress> ADDRESSES = localAddresses();
+
+        private static Set<InetAddress> localAddresses() {
+            Set<InetAddress> addresses = new HashSet<>();
+            addresses.add(InetAddress.getLoopbackAddress());
+            try {
+                for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+                    addresses.addAll(Collections.list(networkInterface.getInetAddresses()));
+                }
+            } catch (SocketException ex) {
+                Logger.getLogger(SarabandaController.class.getName()).log(Level.WARNING, null, ex);
+            }
+            return addresses;
+        }
+    }
+
+    /**
+     * Verifica se un pacchetto porta una pressione mentre nessun pulsante è
+     * premuto.
+     *
+     * @param frame
+     * @return
+     */
+    private boolean isNewPress(SarabandaFrame frame) {
+        if (frame.getCommand() != SarabandaCommand.BUTTON) {
+            return false;
+        }
+        boolean pressed = false;
+        for (int w = 0; w < buttons.wordCount(); w++) {
+            if (PushButtonBoard.hasPressed(buttons.getWord(w))) {
+                return false;
+            }
+            pressed |= PushButtonBoard.hasPressed(frame.getButtonWord(w));
+        }
+        return pressed;
+    }
+
+    /**
+     * Pubblica la pressione che ha vinto l'arbitraggio: il pacchetto viene
+     * applicato lasciando premuto solo il suo primo pulsante premuto.
+     *
+     * @param frame
+     */
+    void applyPress(SarabandaFrame frame) {
+        long start = System.nanoTime();
+        boolean changed = false;
+        int winner = -1;
+        for (int w = 0; w < buttons.wordCount(); w++) {
+            long word = frame.getButtonWord(w);
+            long value = PushButtonBoard.replaced(word, PushButtonStatus.PRESSED, PushButtonStatus.ENABLED);
+            int first = PushButtonBoard.firstPressed(word);
+            if (winner < 0 && first >= 0) {
+                value = PushButtonBoard.with(value, first, PushButtonStatus.PRESSED);
+                winner = w * PushButtonBoard.BUTTONS_PER_WORD + first;
+            }
+            changed |= fireButtonChanges(w, buttons.setWord(w, value), value);
+        }
+        LatencyStage.APPLY.recordSince(start);
+
+        if (changed) {
+            recordState(SarabandaCommand.BUTTON, SarabandaStateLog.RECEIVED, winner);
+            sendPushButtonStatus();
+        }
+    }
+
+    /**
+     * Imposta la finestra di arbitraggio delle pressioni.
+     *
+     * @param windowMicros 0 per applicare le pressioni appena ricevute
+     */
+    public void setArbitrationWindow(long windowMicros) {
+        if (windowMicros == 0) {
+            arbiter.flush();
+        }
+        arbiter.setWindow(windowMicros);
+    }
+
+    /**
+     *
+     * @return la finestra di arbitraggio in microsecondi
+     */
+    public long getArbitrationWindow() {
+        return arbiter.getWindow();
+    }
+
+    /**
+     * Registra un destinatario degli eventi del controller.
+     *
+     * @param listener
+     */
+    public void addListener(SarabandaListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     *
+     * @param listener
+     */
+    public void removeListener(SarabandaListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Imposta il giornale su cui registrare i pacchetti ricevuti e inviati.
+     *
+     * @param journal null per disattivare la registrazione
+     */
+    public void setJournal(SarabandaJournal journal) {
+        this.journal = journal;
+        sender.setJournal(journal);
+        if (udpservice != null) {
+            udpservice.setJournal(journal);
+        }
+    }
+
+    /**
+     * Imposta il registro delle transizioni dei pulsanti e riporta i pulsanti
+     * allo stato ricostruito dal registro, notificando i listener.
+     *
+     * @param stateLog null per disattivare la registrazione
+     */
+    public void setStateLog(SarabandaStateLog stateLog) {
+        this.stateLog = stateLog;
+        if (stateLog == null) {
+            return;
+        }
+        long[] previous = new long[buttons.wordCount()];
+        for (int w = 0; w < previous.length; w++) {
+            previous[w] = buttons.getWord(w);
+        }
+        if (stateLog.restore(buttons)) {
+            for (int w = 0; w < previous.length; w++) {
+                fireButtonChanges(w, previous[w], buttons.getWord(w));
+            }
+            Logger.getLogger(SarabandaController.class.getName()).log(Level.INFO, "Pulsanti riportati allo stato dell''evento {0}", stateLog.getLastNumber());
+        }
+    }
+
+    /**
+     * Registra una transizione dei pulsanti se il registro è attivo.
+     *
+     * @param command
+     * @param origin
+     * @param button pulsante interessato, -1 se nessuno
+     */
+    private void recordState(SarabandaCommand command, byte origin, int button) {
+        SarabandaStateLog current = stateLog;
+        if (current != null) {
+            current.record(command, origin, button, buttons);
+        }
+    }
+
+    /**
+     * Attiva il numero di sequenza in fondo ai pacchetti inviati.
+     *
+     * @param sequenced
+     */
+    public void setSequenceNumbers(boolean sequenced) {
+        sender.setSequenced(sequenced);
+    }
+
+    /**
+     *
+     * @return
+     */
+    public boolean isSequenceNumbers() {
+        return sender.isSequenced();
+    }
+
+    /**
+     * Attiva la ritrasmissione di RESET, FULLRESET ed ERROR fino alla
+     * conferma del destinatario.
+     *
+     * @param reliableCommands
+     */
+    public void setReliableCommands(boolean reliableCommands) {
+        this.reliableCommands = reliableCommands;
+        if (!reliableCommands) {
+            reliable.close();
+        }
+    }
+
+    /**
+     *
+     * @return
+     */
+    public boolean isReliableCommands() {
+        return reliableCommands;
+    }
+
+    /**
+     *
+     * @return i comandi inviati e non ancora confermati
+     */
+    public int getCommandsInFlight() {
+        return reliable.getInFlight();
+    }
+
+    /**
+     * Notifica il cambio di modalità.
+     */
+    private void fireModeChanged() {
+        for (SarabandaListener listener : listeners) {
+            listener.modeChanged(classicMode, onlyLocalhostMode);
+        }
+    }
+
     /**
      *
      * @param classicMode
      */
     public void setClassicMode(boolean classicMode) {
-        classicModeProperty.setValue(classicMode);
+        this.classicMode = classicMode;
         if (classicMode) {
             udpSendPort = UDP_SLAVE_CLASSIC_PORT;
-            udpListenPort = UDP_MASTER_PORT;
+            setListenPort(UDP_MASTER_PORT);
         } else {
             udpSendPort = UDP_SLAVE_PORT;
-            udpListenPort = UDP_MASTER_PORT;
+            setListenPort(UDP_MASTER_PORT);
         }
+        sender.setDestination(broadcastAddress, udpSendPort);
+        fireModeChanged();
 
         Logger.getLogger(SarabandaController.class.getName()).log(Level.INFO, "Cambio della modalità con invio alla porta {0}", udpSendPort);
     }
 
+    /**
+     * Cambia la porta di ascolto principale. Con il server attivo la nuova
+     * porta viene aperta prima di chiudere la vecchia, per cui non si perdono
+     * pacchetti durante il cambio.
+     *
+     * @param port
+     */
+    protected void setListenPort(int port) {
+        int previous = udpListenPort;
+        udpListenPort = port;
+        if (udpservice != null && previous != port) {
+            udpservice.addPort(port);
+            if (!isExtraListenPort(previous)) {
+                udpservice.removePort(previous);
+            }
+        }
+    }
+
+    /**
+     * Aggiunge una porta di ascolto oltre a quella della modalità corrente,
+     * anche con il server attivo.
+     *
+     * @param port
+     */
+    public void addListenPort(int port) {
+        synchronized (extraListenPorts) {
+            extraListenPorts.add(port);
+        }
+        if (udpservice != null) {
+            udpservice.addPort(port);
+        }
+        Logger.getLogger(SarabandaController.class.getName()).log(Level.INFO, "Aggiungo la porta di ascolto {0}", String.valueOf(port));
+    }
+
+    /**
+     * Toglie una porta di ascolto aggiunta con addListenPort. La porta della
+     * modalità corrente resta comunque in ascolto.
+     *
+     * @param port
+     */
+    public void removeListenPort(int port) {
+        synchronized (extraListenPorts) {
+            extraListenPorts.remove(port);
+        }
+        if (udpservice != null && port != udpListenPort) {
+            udpservice.removePort(port);
+        }
+        Logger.getLogger(SarabandaController.class.getName()).log(Level.INFO, "Tolgo la porta di ascolto {0}", String.valueOf(port));
+    }
+
+    /**
+     *
+     * @param port
+     * @return true se la porta è stata aggiunta con addListenPort
+     */
+    private boolean isExtraListenPort(int port) {
+        synchronized (extraListenPorts) {
+            return extraListenPorts.contains(port);
+        }
+    }
+
+    /**
+     *
+     * @return le porte di ascolto, a partire da quella della modalità corrente
+     */
+    public int[] getListenPorts() {
+        if (udpservice != null) {
+            return udpservice.getPorts();
+        }
+        synchronized (extraListenPorts) {
+            Set<Integer> ports = new LinkedHashSet<>();
+            ports.add(udpListenPort);
+            ports.addAll(extraListenPorts);
+            int[] result = new int[ports.size()];
+            int i = 0;
+            for (int port : ports) {
+                result[i++] = port;
+            }
+            return result;
+        }
+    }
+
     /**
      *
      * @param localhostOnly
      */
     public void setLocalhostOnly(boolean localhostOnly) {
-        onlyLocalhostModeProperty.setValue(localhostOnly);
+        onlyLocalhostMode = localhostOnly;
+        leaveMulticast();
 
         // Imposta l'indirizzo di broascast
         if (localhostOnly) {
@@ -207,88 +613,234 @@ public class SarabandaController {
                 Logger.getLogger(SarabandaController.class.getName()).log(Level.SEVERE, null, ex);
             }
         }
+        sender.setDestination(broadcastAddress, udpSendPort);
+        fireModeChanged();
 
         Logger.getLogger(SarabandaController.class.getName()).log(Level.INFO, "Cambio della modalità con invio su indirizzo {0}", broadcastAddress.getHostAddress());
     }
 
     /**
-     * Effettua il parsing dei messaggi.
+     * Passa alla modalità multicast: i pacchetti vengono inviati al gruppo e
+     * il servizio UDP si iscrive al gruppo, per cui li ricevono solo le
+     * macchine interessate. Si torna al broadcast o al solo localhost con
+     * setLocalhostOnly.
+     *
+     * @param group indirizzo multicast IPv4
+     * @param networkInterface interfaccia su cui inviare e ricevere
+     */
+    public void setMulticast(InetAddress group, NetworkInterface networkInterface) {
+        if (!group.isMulticastAddress()) {
+            throw new IllegalArgumentException("Indirizzo multicast non valido: " + group.getHostAddress());
+        }
+        multicastGroup = group;
+        multicastInterface = networkInterface;
+        onlyLocalhostMode = false;
+        broadcastAddress = group;
+
+        sender.setMulticastInterface(networkInterface);
+        sender.setDestination(group, udpSendPort);
+        if (udpservice != null) {
+            udpservice.setMulticast(group, networkInterface);
+        }
+        fireModeChanged();
+
+        Logger.getLogger(SarabandaController.class.getName()).log(Level.INFO, "Cambio della modalità con invio sul gruppo {0} tramite {1}", new Object[]{group.getHostAddress(), networkInterface.getName()});
+    }
+
+    /**
+     * Lascia l'eventuale gruppo multicast.
+     */
+    private void leaveMulticast() {
+        if (multicastGroup == null) {
+            return;
+        }
+        multicastGroup = null;
+        multicastInterface = null;
+        sender.setMulticastInterface(null);
+        if (udpservice != null) {
+            udpservice.setMulticast(null, null);
+        }
+    }
+
+    /**
+     * Cerca l'interfaccia per il multicast.
+     *
+     * @param name nome dell'interfaccia, null per la prima interfaccia attiva
+     * con multicast che non sia di loopback, oppure il loopback se non ce ne
+     * sono
+     * @return
+     * @throws SocketException
+     */
+    public static NetworkInterface findMulticastInterface(String name) throws SocketException {
+        if (name != null) {
+            NetworkInterface networkInterface = NetworkInterface.getByName(name);
+            if (networkInterface == null) {
+                throw new SocketException("Interfaccia sconosciuta: " + name);
+            }
+            return networkInterface;
+        }
+        for (NetworkInterface networkInterface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (networkInterface.isUp() && networkInterface.supportsMulticast() && !networkInterface.isLoopback()) {
+                return networkInterface;
+            }
+        }
+        return NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * Effettua il parsing dei messaggi già decodificati dal codec.
      *
      * @param message
      */
-    private void parseMessage(String message) {
-        Logger.getLogger(SarabandaController.class.getName()).log(Level.INFO, "Effettuo il parsing del messaggio {0}", message);
-        
-        // Verifico se il messaggio ricevuto rispetta le condizioni 
-        parseButtonMessage(message);
-        parseErrorMessage(message);
-        parseResetMessage(message);
-        parseFullResetMessage(message);
-        
-        // Invio lo stato dei pulsanti
-        sendPushButtonStatus();
+    protected void parseMessage(SarabandaFrame message) {
+        // Un solo confronto sul comando decodificato al posto delle espressioni regolari
+        long start = System.nanoTime();
+        boolean changed;
+        switch (message.getCommand()) {
+            case BUTTON:
+                changed = parseButtonMessage(message);
+                break;
+            case ERROR:
+                changed = parseErrorMessage(message);
+                break;
+            case RESET:
+                changed = parseResetMessage(message);
+                break;
+            case FULLRESET:
+                changed = parseFullResetMessage(message);
+                break;
+            default:
+                changed = false;
+                break;
+        }
+        LatencyStage.APPLY.recordSince(start);
+
+        // Il DEMO non cambia i pulsanti ma fa parte della storia della partita
+        if (changed || message.getCommand() == SarabandaCommand.DEMO) {
+            recordState(message.getCommand(), SarabandaStateLog.RECEIVED, -1);
+        }
+
+        // Invio lo stato dei pulsanti solo se è cambiato
+        if (changed) {
+            sendPushButtonStatus();
+        }
     }
 
     /**
      * 
      * @param message 
+     * @return true se lo stato dei pulsanti è cambiato
      */
-    protected void parseButtonMessage(String message) {
-        Logger.getLogger(SarabandaController.class.getName()).log(Level.INFO, "Effettuo il parsing del messaggio {0}", message);
-        if (message.matches(buttonCommandRegex)) {
-            Logger.getLogger(SarabandaController.class.getName()).log(Level.INFO, "Il messaggio {0} indica un cambio di stato dei pulsanti secondo {1}", new Object[]{message, buttonCommandRegex});
-            String button = message.substring(message.length() - 4);
-            for (int i = 0; buttons.size() > i; i++) {
-                PushButtonStatus status = PushButtonStatus.parse(button.substring(i, i + 1));
-                buttons.get(i).setStatus(status);
-            }
+    protected boolean parseButtonMessage(SarabandaFrame message) {
+        boolean changed = false;
+        for (int w = 0; w < buttons.wordCount(); w++) {
+            long word = message.getButtonWord(w);
+            changed |= fireButtonChanges(w, buttons.setWord(w, word), word);
         }
+        return changed;
     }
 
     /**
      * 
      * @param message 
+     * @return true se lo stato dei pulsanti è cambiato
      */
-    protected void parseFullResetMessage(String message) {
-        Logger.getLogger(SarabandaController.class.getName()).log(Level.INFO, "Effettuo il parsing del messaggio {0}", message);
-        if (message.matches("SRBND-F.*")) {
-            Logger.getLogger(SarabandaController.class.getName()).log(Level.INFO, "Il messaggio {0} indica un full reset secondo {1}", new Object[]{message, "SRBND-F.*"});
-            buttons.stream().forEach((button) -> {
-                button.setStatus(PushButtonStatus.ENABLED);
-            });
+    protected boolean parseFullResetMessage(SarabandaFrame message) {
+        boolean changed = false;
+        for (int w = 0; w < buttons.wordCount(); w++) {
+            changed |= fireButtonChanges(w, buttons.setWord(w, 0), 0);
         }
+        return changed;
     }
 
     /**
      * 
      * @param message 
+     * @return true se lo stato dei pulsanti è cambiato
      */
-    protected void parseResetMessage(String message) {
-        Logger.getLogger(SarabandaController.class.getName()).log(Level.INFO, "Effettuo il parsing del messaggio {0}", message);
-        if (message.matches("SRBND-R.*")) {
-            Logger.getLogger(SarabandaController.class.getName()).log(Level.INFO, "Il messaggio {0} indica un reste secondo {1}", new Object[]{message, "SRBND-R.*"});
-            buttons.stream().forEach((button) -> {
-                if (button.getStatus() == PushButtonStatus.PRESSED) {
-                    button.setStatus(PushButtonStatus.ENABLED);
-                }
-            });
-        }
+    protected boolean parseResetMessage(SarabandaFrame message) {
+        return replaceButtons(PushButtonStatus.PRESSED, PushButtonStatus.ENABLED);
     }
 
     /**
      * 
      * @param message 
+     * @return true se lo stato dei pulsanti è cambiato
      */
-    protected void parseErrorMessage(String message) {
-        Logger.getLogger(SarabandaController.class.getName()).log(Level.INFO, "Effettuo il parsing del messaggio {0}", message);
-        if (message.matches("SRBND-E.*")) {
-            Logger.getLogger(SarabandaController.class.getName()).log(Level.INFO, "Il messaggio {0} indica un errore secondo {1}", new Object[]{message, "SRBND-E.*"});
-            buttons.stream().forEach((button) -> {
-                if (button.getStatus() == PushButtonStatus.PRESSED) {
-                    button.setStatus(PushButtonStatus.ERROR);
-                }
-            });
+    protected boolean parseErrorMessage(SarabandaFrame message) {
+        return replaceButtons(PushButtonStatus.PRESSED, PushButtonStatus.ERROR);
+    }
+
+    /**
+     * Porta tutti i pulsanti nello stato from nello stato to notificando i
+     * listener.
+     *
+     * @param from
+     * @param to
+     * @return true se almeno un pulsante è cambiato
+     */
+    protected boolean replaceButtons(PushButtonStatus from, PushButtonStatus to) {
+        boolean changed = false;
+        for (int w = 0; w < buttons.wordCount(); w++) {
+            long previous = buttons.replace(w, from, to);
+            changed |= fireButtonChanges(w, previous, PushButtonBoard.replaced(previous, from, to));
         }
+        return changed;
+    }
+
+    /**
+     * Notifica ai listener i pulsanti che hanno cambiato stato tra due
+     * versioni di una parola.
+     *
+     * @param word
+     * @param previous
+     * @param current
+     * @return true se la parola è cambiata
+     */
+    protected boolean fireButtonChanges(int word, long previous, long current) {
+        if (previous == current) {
+            return false;
+        }
+        int first = word * PushButtonBoard.BUTTONS_PER_WORD;
+        int last = Math.min(first + PushButtonBoard.BUTTONS_PER_WORD, buttons.size());
+        for (int i = first; i < last; i++) {
+            PushButtonStatus status = PushButtonBoard.status(current, i - first);
+            if (PushButtonBoard.status(previous, i - first) != status) {
+                fireButtonChange(i, status);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Notifica ai listener il cambio di stato di un pulsante.
+     *
+     * @param button
+     * @param status
+     */
+    protected void fireButtonChange(int button, PushButtonStatus status) {
+        for (SarabandaListener listener : listeners) {
+            listener.buttonStatusChanged(button, status);
+        }
+    }
+
+    /**
+     * Gestisce la pressione di un pulsante: è valida solo se il pulsante è
+     * abilitato e nessun altro risulta già premuto. La verifica è un unico
+     * compare-and-set sullo stato dei pulsanti, per cui può essere invocata
+     * da qualunque thread.
+     *
+     * @param buttonId
+     * @return true se la pressione è stata accettata e inviata alla rete
+     */
+    public boolean pressButton(int buttonId) {
+        if (!buttons.press(buttonId)) {
+            return false;
+        }
+        recordState(SarabandaCommand.BUTTON, SarabandaStateLog.LOCAL, buttonId);
+        fireButtonChange(buttonId, PushButtonStatus.PRESSED);
+        sendPushButtonStatus();
+        return true;
     }
 
     /*
@@ -300,90 +852,125 @@ public class SarabandaController {
         if (udpservice == null) {
             this.initUDPService();
         }
-        
-        // Ripulisce lo stato del task
-        if ((udpservice.getState() == Worker.State.CANCELLED) || (udpservice.getState() == Worker.State.FAILED)) {
-            udpservice.reset();
-        }
 
-        // Se il server è pronto effettua lo start del service
-        if (udpservice.getState() == Worker.State.READY) {
-            udpservice.start();
-        }
+        // Avvia il servizio se non è già attivo
+        udpservice.start();
+        startResync();
     }
 
     /**
-     * Disattiva il servizio UDP invocando la cancellazione del servizio e
-     * spedento un pacchetto per bypassare il fatto che la lettura del socket è
-     * bloccante
+     * Disattiva il servizio UDP. La cancellazione sveglia il selettore del
+     * servizio e attende la fine del thread di ricezione.
      */
     public void stopServer() {
         Logger.getLogger(SarabandaController.class.getName()).log(Level.INFO, "Spengo il server");
+        stopResync();
         if (udpservice != null) {
             if (udpservice.isRunning()) {
                 // Invia al servizio il comando di spegnersi
                 udpservice.cancel();
-
-                // Invia un pacchetto UDP generico a se stesso per andare a far 
-                // uscire il server dallo stato di listen necessario in quanto 
-                // la lettura del socket è bloccante
-                sendPacket(new StringBuilder()
-                        .append(SarabandaController.MESSAGE_HEADER)
-                        .append(message)
-                        .toString(),
-                        udpListenPort,
-                        broadcastAddress);
             }
         }
     }
 
+    /**
+     * Chiude il canale di invio dei pacchetti.
+     */
+    public void close() {
+        stopServer();
+        stopResync();
+        arbiter.flush();
+        reliable.close();
+        sender.close();
+        metrics.unregister();
+    }
+
+    /**
+     * Avvia il reinvio periodico dello stato dei pulsanti.
+     */
+    protected synchronized void startResync() {
+        if (resyncNanos > 0 && resync == null) {
+            resync = SarabandaScheduler.getInstance().scheduleAtFixedRate(this::resync, resyncNanos, resyncNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Ferma il reinvio periodico dello stato dei pulsanti.
+     */
+    protected synchronized void stopResync() {
+        if (resync != null) {
+            resync.cancel(false);
+            resync = null;
+        }
+    }
+
+    /**
+     * Reinvia lo stato dei pulsanti se non è stato inviato nell'ultimo
+     * intervallo, in modo da riallineare chi ha perso un pacchetto.
+     */
+    private void resync() {
+        if (System.nanoTime() - lastStatusNanos >= resyncNanos) {
+            sendPushButtonStatus();
+        }
+    }
+
     /**
      * 
      */
     public void sendSarabandaReset() {
-        sendSarabandaMessage(SarabandaController.RESET_COMMAND);
+        sendCriticalCommand(SarabandaCommand.RESET);
     }
 
     /**
      * 
      */
     public void sendSarabandaFullReset() {
-        sendSarabandaMessage(SarabandaController.FULLRESET_COMMAND);
+        sendCriticalCommand(SarabandaCommand.FULLRESET);
     }
 
     /**
      * 
      */
     public void sendSarabandaError() {
-        sendSarabandaMessage(SarabandaController.ERROR_COMMAND);
+        sendCriticalCommand(SarabandaCommand.ERROR);
+    }
+
+    /**
+     * Invia un comando che lascerebbe il tabellone bloccato se andasse perso.
+     *
+     * @param command
+     */
+    private void sendCriticalCommand(SarabandaCommand command) {
+        recordState(command, SarabandaStateLog.SENT, -1);
+        if (reliableCommands) {
+            reliable.send(command);
+        } else {
+            sender.sendCommand(command);
+        }
     }
 
     /**
      * 
      */
     public void sendSarabandaDemo() {
-        sendSarabandaMessage(SarabandaController.DEMO_COMMAND);
+        recordState(SarabandaCommand.DEMO, SarabandaStateLog.SENT, -1);
+        sender.sendCommand(SarabandaCommand.DEMO);
     }
 
     /**
      * 
      */
     public void sendSarabandaMasterPhysicalReset() {
-        sendSarabandaMessage(SarabandaController.HWRESET_COMMAND);
+        sender.sendCommand(SarabandaCommand.HWRESET);
     }
     
     /**
      * 
      */
     public void sendPushButtonStatus() {
-        Logger.getLogger(SarabandaController.class.getName()).log(Level.INFO, "Invio lo stato dei pulsanti");
-        StringBuffer _message = new StringBuffer().append(SarabandaController.BUTTON_COMMAND);
-
-        buttons.stream().forEach((button) -> {
-            _message.append(button.getStatus());
-        });
-
-        sendSarabandaMessage(_message.toString());
+        lastStatusNanos = System.nanoTime();
+        sender.sendButtons(buttons, -1);
+        eventLog.sent(udpListenPort, buttons);
     }
 
     /**
@@ -391,17 +978,7 @@ public class SarabandaController {
      * @param buttonId 
      */
     public void sendPushButtonPressed(int buttonId) {
-        StringBuffer _message = new StringBuffer().append(SarabandaController.BUTTON_COMMAND);
-
-        for (int i = 0; i < buttons.size(); i++) {
-            if (i == buttonId) {
-                _message.append(PushButtonStatus.PRESSED);
-            } else {
-                _message.append(buttons.get(i).getStatus());
-            }
-        }
-
-        sendSarabandaMessage(_message.toString());
+        sender.sendButtons(buttons, buttonId);
     }
 
     /**
@@ -410,12 +987,7 @@ public class SarabandaController {
      * @param message
      */
     public void sendSarabandaMessage(String message) {
-        sendPacket(new StringBuilder()
-                .append(SarabandaController.MESSAGE_HEADER)
-                .append(message)
-                .toString(),
-                udpSendPort,
-                broadcastAddress);
+        sendPacket(SarabandaController.MESSAGE_HEADER + message, udpSendPort, broadcastAddress);
     }
 
     /**
@@ -426,45 +998,47 @@ public class SarabandaController {
      * @param destination
      */
     public void sendPacket(String message, int port, InetAddress destination) {
-        try {
-            DatagramSocket socket = new DatagramSocket();
-            socket.setBroadcast(true);
+        sender.send(message, new InetSocketAddress(destination, port));
+    }
 
-            DatagramPacket sendPacket = new DatagramPacket(
-                    message.getBytes(),
-                    message.getBytes().length,
-                    destination,
-                    port
-            );
-            socket.send(sendPacket);
-        } catch (SocketException ex) {
-            Logger.getLogger(SarabandaController.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (IOException ex) {
-            Logger.getLogger(SarabandaController.class.getName()).log(Level.SEVERE, null, ex);
-        }
+    /**
+     *
+     * @return una delle costanti SERVER_*
+     */
+    public int getServerStatus() {
+        return serverStatus;
     }
 
     /**
      *
      * @return
      */
-    public ReadOnlyIntegerProperty serverStatusProperty() {
-        return serverStatus.getReadOnlyProperty();
+    public int getButtonNumber() {
+        return buttons.size();
     }
 
     /**
      *
+     * @param button
      * @return
      */
-    public ReadOnlyStringProperty messageProperty() {
-        return message.getReadOnlyProperty();
+    public PushButtonStatus getButtonStatus(int button) {
+        return buttons.getStatus(button);
     }
 
     /**
      *
-     * @return
+     * @return le metriche del controller
+     */
+    public SarabandaMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     *
+     * @return lo stato condiviso dei pulsanti
      */
-    public ObservableList<PushButton> getPushButton() {
+    public PushButtonBoard getButtonBoard() {
         return buttons;
     }
 
@@ -472,15 +1046,31 @@ public class SarabandaController {
      * 
      * @return 
      */
-    public ReadOnlyBooleanProperty classicModeProperty() {
-        return classicModeProperty.getReadOnlyProperty();
+    public boolean isClassicMode() {
+        return classicMode;
     }
 
     /**
      * 
      * @return 
      */
-    public ReadOnlyBooleanProperty onlyLocalhostModeProperty() {
-        return onlyLocalhostModeProperty.getReadOnlyProperty();
+    public boolean isOnlyLocalhostMode() {
+        return onlyLocalhostMode;
+    }
+
+    /**
+     *
+     * @return true se i pacchetti viaggiano su un gruppo multicast
+     */
+    public boolean isMulticastMode() {
+        return multicastGroup != null;
+    }
+
+    /**
+     *
+     * @return il gruppo multicast, null se non attivo
+     */
+    public InetAddress getMulticastGroup() {
+        return multicastGroup;
     }
 }
@@ -0,0 +1,388 @@
+/*
+ * Copyright 2015 Elvis Del Tedesco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.phante.sarabandasaloon.network;
+
+import com.phante.sarabandasaloon.entity.PushButtonBoard;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Log strutturato degli eventi dei pacchetti. Il thread che riceve o invia
+ * scrive soltanto campi fissi in un anello preallocato, senza formattare
+ * messaggi né allocare oggetti; un thread in background svuota l'anello
+ * scrivendo gli eventi su java.util.logging oppure su file.
+ *
+ * Quando il livello di un evento non è abilitato la registrazione si riduce
+ * al confronto con il livello corrente. Se l'anello è pieno l'evento viene
+ * scartato e conteggiato, senza mai bloccare il thread di rete.
+ *
+ * Il livello si imposta con la proprietà sarabanda.eventlog.level (INFO di
+ * default) e il file con sarabanda.eventlog.file; senza file gli eventi
+ * vengono scritti sul logger di questa classe.
+ *
+ * @author deltedes
+ */
+public class SarabandaEventLog {
+
+    // Proprietà per il livello del log
+    public static final String LEVEL_PROPERTY = "sarabanda.eventlog.level";
+    // Proprietà per il file di destinazione
+    public static final String FILE_PROPERTY = "sarabanda.eventlog.file";
+
+    // Dimensione dell'anello, potenza di 2
+    private static final int CAPACITY = 4096;
+    // Attesa del thread di scrittura quando l'anello è vuoto
+    private static final long PARK_NANOS = 10_000_000L;
+
+    /**
+     * Tipi di evento con il relativo livello di log.
+     */
+    public enum Type {
+        // Pacchetto Sarabanda elaborato
+        RECEIVED(Level.INFO),
+        // Pacchetto che non è un messaggio Sarabanda
+        INVALID(Level.FINE),
+        // Stato dei pulsanti inviato
+        SENT(Level.FINE);
+
+        private final Level level;
+
+        private Type(Level level) {
+            this.level = level;
+        }
+
+        /**
+         *
+         * @return
+         */
+        public Level level() {
+            return level;
+        }
+    }
+
+    private static final Type[] TYPES = Type.values();
+    private static final SarabandaCommand[] COMMANDS = SarabandaCommand.values();
+
+    // Campi degli eventi, uno per colonna
+    private final long[] times = new long[CAPACITY];
+    private final byte[] types = new byte[CAPACITY];
+    private final byte[] commands = new byte[CAPACITY];
+    private final int[] sources = new int[CAPACITY];
+    private final int[] sizes = new int[CAPACITY];
+    private final long[][] words = new long[PushButtonBoard.MAX_WORDS][CAPACITY];
+    // Sequenza pubblicata in ogni posizione, indica che i campi sono completi
+    private final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+    private final int mask = CAPACITY - 1;
+
+    // Prossima posizione da assegnare
+    private final AtomicLong tail = new AtomicLong();
+    // Prossima posizione da scrivere, aggiornata solo dal thread di scrittura
+    private final AtomicLong head = new AtomicLong();
+    // Eventi scartati perché l'anello era pieno
+    private final AtomicLong dropped = new AtomicLong();
+
+    // Soglia corrente come valore intero del livello
+    private volatile int threshold;
+
+    // Riferimento per convertire System.nanoTime in un orario
+    private final long baseMillis = System.currentTimeMillis();
+    private final long baseNanos = System.nanoTime();
+
+    // Destinazione su file, null per usare il logger
+    private final BufferedWriter writer;
+    // Thread di scrittura
+    private final Thread drainer;
+    private volatile boolean running = true;
+
+    /**
+     *
+     */
+    private SarabandaEventLog() {
+        threshold = Level.parse(System.getProperty(LEVEL_PROPERTY, Level.INFO.getName())).intValue();
+
+        BufferedWriter fileWriter = null;
+        String file = System.getProperty(FILE_PROPERTY);
+        if (file != null) {
+            try {
+                fileWriter = Files.newBufferedWriter(Paths.get(file), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException ex) {
+                Logger.getLogger(SarabandaEventLog.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        writer = fileWriter;
+
+        // Tutte le posizioni partono come non pubblicate
+        for (int i = 0; i < CAPACITY; i++) {
+            published.set(i, -1);
+        }
+
+        drainer = new Thread(this::drain, "sarabanda-eventlog");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     *
+     * @return
+     */
+    public static SarabandaEventLog getInstance() {
+        return SarabandaEventLogHolder.INSTANCE;
+    }
+
+    private static class SarabandaEventLogHolder {
+        private static final SarabandaEventLog INSTANCE = new SarabandaEventLog();
+    }
+
+    /**
+     *
+     * @param level
+     */
+    public void setLevel(Level level) {
+        threshold = level.intValue();
+    }
+
+    /**
+     *
+     * @param type
+     * @return true se gli eventi del tipo indicato vengono registrati
+     */
+    public boolean isEnabled(Type type) {
+        return type.level.intValue() >= threshold;
+    }
+
+    /**
+     *
+     * @return il numero di eventi scartati perché l'anello era pieno
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Registra un pacchetto ricevuto con il suo comando e, per i pacchetti
+     * pulsanti, lo stato trasportato.
+     *
+     * @param source porta o sessione che ha ricevuto il pacchetto
+     * @param frame
+     * @param buttonNumber
+     */
+    public void received(int source, SarabandaFrame frame, int buttonNumber) {
+        if (Type.RECEIVED.level.intValue() < threshold) {
+            return;
+        }
+        long slot = claim();
+        if (slot < 0) {
+            return;
+        }
+        int i = (int) (slot & mask);
+        times[i] = System.nanoTime();
+        types[i] = (byte) Type.RECEIVED.ordinal();
+        commands[i] = (byte) frame.getCommand().ordinal();
+        sources[i] = source;
+        sizes[i] = frame.getCommand() == SarabandaCommand.BUTTON ? buttonNumber : 0;
+        for (int w = 0; w < words.length; w++) {
+            words[w][i] = frame.getButtonWord(w);
+        }
+        published.lazySet(i, slot);
+    }
+
+    /**
+     * Registra un pacchetto che non è un messaggio Sarabanda, conservandone
+     * la lunghezza e i primi byte.
+     *
+     * @param source
+     * @param frame
+     */
+    public void invalid(int source, SarabandaFrame frame) {
+        if (Type.INVALID.level.intValue() < threshold) {
+            return;
+        }
+        long slot = claim();
+        if (slot < 0) {
+            return;
+        }
+        int i = (int) (slot & mask);
+        times[i] = System.nanoTime();
+        types[i] = (byte) Type.INVALID.ordinal();
+        commands[i] = (byte) SarabandaCommand.INVALID.ordinal();
+        sources[i] = source;
+        sizes[i] = frame.length();
+        // I primi byte del pacchetto, 8 per parola
+        for (int w = 0; w < words.length; w++) {
+            long packed = 0;
+            for (int b = 0; b < Long.BYTES; b++) {
+                int k = w * Long.BYTES + b;
+                packed |= (k < frame.length() ? (frame.byteAt(k) & 0xFFL) : 0L) << (Long.SIZE - Byte.SIZE * (b + 1));
+            }
+            words[w][i] = packed;
+        }
+        published.lazySet(i, slot);
+    }
+
+    /**
+     * Registra l'invio dello stato dei pulsanti.
+     *
+     * @param source
+     * @param board
+     */
+    public void sent(int source, PushButtonBoard board) {
+        if (Type.SENT.level.intValue() < threshold) {
+            return;
+        }
+        long slot = claim();
+        if (slot < 0) {
+            return;
+        }
+        int i = (int) (slot & mask);
+        times[i] = System.nanoTime();
+        types[i] = (byte) Type.SENT.ordinal();
+        commands[i] = (byte) SarabandaCommand.BUTTON.ordinal();
+        sources[i] = source;
+        sizes[i] = board.size();
+        for (int w = 0; w < words.length; w++) {
+            words[w][i] = w < board.wordCount() ? board.getWord(w) : 0;
+        }
+        published.lazySet(i, slot);
+    }
+
+    /**
+     * Assegna una posizione dell'anello.
+     *
+     * @return la sequenza assegnata oppure -1 se l'anello è pieno
+     */
+    private long claim() {
+        while (true) {
+            long t = tail.get();
+            if (t - head.get() >= CAPACITY) {
+                dropped.incrementAndGet();
+                return -1;
+            }
+            if (tail.compareAndSet(t, t + 1)) {
+                return t;
+            }
+        }
+    }
+
+    /**
+     * Loop del thread di scrittura.
+     */
+    private void drain() {
+        StringBuilder line = new StringBuilder(128);
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        Date date = new Date();
+
+        while (running) {
+            long h = head.get();
+            int i = (int) (h & mask);
+            if (published.get(i) != h) {
+                flush();
+                LockSupport.parkNanos(this, PARK_NANOS);
+                continue;
+            }
+
+            Type type = TYPES[types[i]];
+            date.setTime(baseMillis + (times[i] - baseNanos) / 1_000_000L);
+            line.setLength(0);
+            line.append(format.format(date)).append(' ').append(type).append(' ').append(sources[i]).append(' ');
+            if (type == Type.INVALID) {
+                line.append("len=").append(sizes[i]).append(' ');
+                int shown = Math.min(sizes[i], words.length * Long.BYTES);
+                for (int k = 0; k < shown; k++) {
+                    int b = (int) (words[k / Long.BYTES][i] >>> (Long.SIZE - Byte.SIZE * (k % Long.BYTES + 1))) & 0xFF;
+                    line.append(b >= ' ' && b < 0x7F ? (char) b : '.');
+                }
+            } else {
+                line.append(COMMANDS[commands[i]]);
+                if (sizes[i] > 0) {
+                    line.append(' ');
+                    for (int b = 0; b < sizes[i]; b++) {
+                        long word = words[b / PushButtonBoard.BUTTONS_PER_WORD][i];
+                        line.append((char) PushButtonBoard.status(word, b % PushButtonBoard.BUTTONS_PER_WORD).code());
+                    }
+                }
+            }
+            head.lazySet(h + 1);
+
+            write(type.level, line);
+        }
+        flush();
+    }
+
+    /**
+     * Scrive una riga sulla destinazione configurata.
+     */
+    private void write(Level level, StringBuilder line) {
+        if (writer == null) {
+            Logger.getLogger(SarabandaEventLog.class.getName()).log(level, line.toString());
+            return;
+        }
+        try {
+            writer.append(line).append(System.lineSeparator());
+        } catch (IOException ex) {
+            Logger.getLogger(SarabandaEventLog.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Svuota il buffer del file.
+     */
+    private void flush() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.flush();
+        } catch (IOException ex) {
+            Logger.getLogger(SarabandaEventLog.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Scrive gli eventi rimasti nell'anello e chiude il file.
+     */
+    public void close() {
+        // Attende che il thread di scrittura abbia svuotato l'anello
+        long deadline = System.nanoTime() + 1_000_000_000L;
+        while (head.get() < tail.get() && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(PARK_NANOS / 10);
+        }
+        running = false;
+        LockSupport.unpark(drainer);
+        try {
+            drainer.join(1000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException ex) {
+                Logger.getLogger(SarabandaEventLog.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2015 Elvis Del Tedesco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.phante.sarabandasaloon.network;
+
+import com.phante.sarabandasaloon.entity.PushButtonBoard;
+import com.phante.sarabandasaloon.entity.PushButtonStatus;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Pacchetto Sarabanda ricevuto dalla rete. L'istanza viene riutilizzata dal
+ * loop di ricezione per ogni datagramma, per cui chi la riceve deve copiarne
+ * il contenuto se lo vuole conservare oltre la chiamata.
+ *
+ * @author deltedes
+ */
+public class SarabandaFrame {
+
+    // Dimensione massima di un pacchetto Sarabanda
+    public static final int MAX_SIZE = 256;
+
+    // Contenuto del pacchetto ripulito dagli spazi iniziali e finali
+    final byte[] data = new byte[MAX_SIZE];
+    // Numero di byte validi in data
+    int length;
+    // Mittente del pacchetto
+    SocketAddress sender;
+    // Comando decodificato, null se il pacchetto non è Sarabanda
+    SarabandaCommand command;
+    // Stato dei pulsanti dei pacchetti B nel formato di PushButtonBoard
+    final long[] buttonWords = new long[PushButtonBoard.MAX_WORDS];
+    // Istante di ricezione secondo System.nanoTime
+    long receivedNanos;
+    // Numero di sequenza del mittente, valido solo se sequenced
+    int sequence;
+    boolean sequenced;
+
+    /**
+     * Carica nel frame il contenuto del buffer (già in modalità lettura)
+     * eliminando gli spazi e i caratteri di controllo iniziali e finali, come
+     * faceva la trim sulla stringa ricevuta.
+     *
+     * @param buffer
+     * @param from
+     */
+    void load(ByteBuffer buffer, SocketAddress from) {
+        int start = buffer.position();
+        int end = buffer.limit();
+
+        while (start < end && (buffer.get(start) & 0xFF) <= ' ') {
+            start++;
+        }
+        while (end > start && (buffer.get(end - 1) & 0xFF) <= ' ') {
+            end--;
+        }
+
+        length = Math.min(end - start, MAX_SIZE);
+        for (int i = 0; i < length; i++) {
+            data[i] = buffer.get(start + i);
+        }
+        sender = from;
+        command = null;
+        sequenced = false;
+        receivedNanos = System.nanoTime();
+    }
+
+    /**
+     * Copia il contenuto di un altro frame.
+     *
+     * @param other
+     */
+    public void copyFrom(SarabandaFrame other) {
+        System.arraycopy(other.data, 0, data, 0, other.length);
+        length = other.length;
+        sender = other.sender;
+        command = other.command;
+        receivedNanos = other.receivedNanos;
+        sequence = other.sequence;
+        sequenced = other.sequenced;
+        System.arraycopy(other.buttonWords, 0, buttonWords, 0, buttonWords.length);
+    }
+
+    /**
+     *
+     * @return l'istante di ricezione secondo System.nanoTime
+     */
+    public long getReceivedNanos() {
+        return receivedNanos;
+    }
+
+    /**
+     *
+     * @return true se il pacchetto riporta un numero di sequenza
+     */
+    public boolean hasSequence() {
+        return sequenced;
+    }
+
+    /**
+     *
+     * @return il numero di sequenza, valido solo se hasSequence
+     */
+    public int getSequence() {
+        return sequence;
+    }
+
+    /**
+     *
+     * @return una copia indipendente del frame
+     */
+    public SarabandaFrame copy() {
+        SarabandaFrame copy = new SarabandaFrame();
+        copy.copyFrom(this);
+        return copy;
+    }
+
+    /**
+     *
+     * @return il comando decodificato
+     */
+    public SarabandaCommand getCommand() {
+        return command;
+    }
+
+    /**
+     * Restituisce lo stato di un pulsante, valido solo per i pacchetti B.
+     *
+     * @param button
+     * @return
+     */
+    public PushButtonStatus getButtonStatus(int button) {
+        return SarabandaCodec.buttonStatus(data, button);
+    }
+
+    /**
+     * Restituisce una parola con lo stato dei pulsanti, valida solo per i
+     * pacchetti B.
+     *
+     * @param word
+     * @return
+     */
+    public long getButtonWord(int word) {
+        return buttonWords[word];
+    }
+
+    /**
+     *
+     * @return
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     *
+     * @param index
+     * @return
+     */
+    public byte byteAt(int index) {
+        return data[index];
+    }
+
+    /**
+     *
+     * @return
+     */
+    public SocketAddress getSender() {
+        return sender;
+    }
+
+    /**
+     *
+     * @return l'indirizzo del mittente in formato testuale
+     */
+    public String getSenderAddress() {
+        if (sender instanceof InetSocketAddress) {
+            return ((InetSocketAddress) sender).getAddress().getHostAddress();
+        }
+        return String.valueOf(sender);
+    }
+
+    /**
+     *
+     * @return il contenuto del pacchetto come stringa
+     */
+    @Override
+    public String toString() {
+        return new String(data, 0, length, StandardCharsets.US_ASCII);
+    }
+}
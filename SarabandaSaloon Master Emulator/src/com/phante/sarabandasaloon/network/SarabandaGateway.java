@@ -0,0 +1,506 @@
+/*
+ * Copyright 2015 Elvis Del Tedesco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.phante.sarabandasaloon.network;
+
+import com.phante.sarabandasaloon.entity.PushButtonStatus;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Gateway TCP e WebSocket che inoltra lo stato dei pulsanti a monitor e
+ * overlay remoti, senza che debbano ascoltare il broadcast UDP.
+ *
+ * Sulla porta TCP ogni stato viene inviato come una riga SRBND-B...; sulla
+ * porta WebSocket come messaggio di testo con lo stesso contenuto. I client
+ * ricevono lo stato corrente alla connessione e poi ogni cambiamento.
+ *
+ * Un solo thread con un selettore serve tutti i client. I cambi di stato del
+ * controller segnalano soltanto che c'è uno stato nuovo; il thread del
+ * gateway lo serializza una volta in un buffer di sola lettura per
+ * protocollo e ogni client lo invia da un proprio duplicate, senza copie. Un
+ * client lento termina l'invio dello stato che ha iniziato e passa poi
+ * direttamente all'ultimo, saltando quelli intermedi: la memoria occupata
+ * per client non cresce con la sua lentezza.
+ *
+ * Dei messaggi inviati dai client WebSocket viene riconosciuta solo la
+ * chiusura, gli altri vengono scartati.
+ *
+ * @author deltedes
+ */
+public class SarabandaGateway implements SarabandaListener, AutoCloseable {
+
+    // Chiave del protocollo WebSocket per la risposta all'handshake
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    // Dimensione massima della richiesta di handshake
+    private static final int MAX_REQUEST = 4096;
+    // Buffer di invio del sistema per client: quello che vi resta è già
+    // deciso e non può più saltare agli stati più recenti, per cui lo si
+    // tiene piccolo rispetto alla dimensione di uno stato
+    private static final int SEND_BUFFER = 1024;
+    // Dimensione del buffer dei messaggi in arrivo dai client WebSocket
+    private static final int INPUT_SIZE = 256;
+    // Codici operativi WebSocket
+    private static final int OPCODE_TEXT = 0x1;
+    private static final int OPCODE_CLOSE = 0x8;
+    private static final byte FIN = (byte) 0x80;
+
+    // Controller di cui si inoltra lo stato
+    private final SarabandaController controller;
+    private final Selector selector;
+    private final ServerSocketChannel tcpServer;
+    private final ServerSocketChannel webSocketServer;
+    private final Thread ioThread;
+    private volatile boolean running;
+
+    // Stato cambiato dall'ultima pubblicazione
+    private final AtomicBoolean dirty = new AtomicBoolean(true);
+
+    // Ultimo stato serializzato per protocollo e relativa versione, usati
+    // solo dal thread del gateway
+    private ByteBuffer tcpFrame;
+    private ByteBuffer webSocketFrame;
+    private long version;
+    private final ByteBuffer payload;
+    // Client connessi
+    private final List<Subscriber> subscribers = new ArrayList<>();
+    // Buffer per scartare i dati in arrivo dai client TCP
+    private final ByteBuffer discard = ByteBuffer.allocate(INPUT_SIZE);
+
+    // Valori esposti
+    private volatile int subscriberCount;
+    private volatile long skippedFrames;
+
+    /**
+     * Client connesso al gateway.
+     */
+    private static class Subscriber {
+
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final boolean webSocket;
+        // Richiesta di handshake in lettura, null a handshake completato
+        private ByteBuffer request;
+        // Messaggi in arrivo, solo per WebSocket
+        private ByteBuffer input;
+        // Byte ancora da scartare del messaggio in arrivo
+        private long skip;
+        // Buffer in invio e versione dell'ultimo stato iniziato
+        private ByteBuffer sending;
+        private long sentVersion;
+        // Da chiudere appena terminato l'invio
+        private boolean closing;
+
+        Subscriber(SocketChannel channel, SelectionKey key, boolean webSocket) {
+            this.channel = channel;
+            this.key = key;
+            this.webSocket = webSocket;
+            if (webSocket) {
+                request = ByteBuffer.allocate(MAX_REQUEST);
+                input = ByteBuffer.allocate(INPUT_SIZE);
+            }
+        }
+
+        boolean isReady() {
+            return request == null && !closing;
+        }
+    }
+
+    /**
+     *
+     * @param controller
+     * @param tcpPort porta delle righe di testo, 0 per non aprirla
+     * @param webSocketPort porta WebSocket, 0 per non aprirla
+     * @throws IOException
+     */
+    public SarabandaGateway(SarabandaController controller, int tcpPort, int webSocketPort) throws IOException {
+        this.controller = controller;
+        payload = ByteBuffer.allocate(controller.codec.buttonFrameLength() + 1);
+        selector = Selector.open();
+        tcpServer = listen(tcpPort, false);
+        webSocketServer = listen(webSocketPort, true);
+        ioThread = new Thread(this::select, "sarabanda-gateway");
+        ioThread.setDaemon(true);
+    }
+
+    /**
+     * Apre una porta di ascolto.
+     *
+     * @param port 0 per non aprirla
+     * @param webSocket
+     * @return il canale, null se non richiesto
+     */
+    private ServerSocketChannel listen(int port, boolean webSocket) throws IOException {
+        if (port == 0) {
+            return null;
+        }
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().setReuseAddress(true);
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT, webSocket);
+        Logger.getLogger(SarabandaGateway.class.getName()).log(Level.INFO, "Gateway {0} in ascolto sulla porta {1}", new Object[]{webSocket ? "WebSocket" : "TCP", String.valueOf(port)});
+        return server;
+    }
+
+    /**
+     * Avvia il thread del gateway e inizia a seguire lo stato del controller.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        controller.addListener(this);
+        ioThread.start();
+    }
+
+    @Override
+    public void buttonStatusChanged(int button, PushButtonStatus status) {
+        // Più cambi prima della pubblicazione producono un solo stato
+        if (dirty.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Loop del thread del gateway.
+     */
+    private void select() {
+        while (running) {
+            try {
+                selector.select();
+                if (!running) {
+                    break;
+                }
+                if (dirty.getAndSet(false)) {
+                    publish();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept((ServerSocketChannel) key.channel(), (Boolean) key.attachment());
+                        continue;
+                    }
+                    Subscriber subscriber = (Subscriber) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            read(subscriber);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            flush(subscriber);
+                        }
+                    } catch (IOException ex) {
+                        // Il client ha chiuso la connessione
+                        disconnect(subscriber);
+                    }
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(SarabandaGateway.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Serializza lo stato corrente una volta per protocollo e lo propone a
+     * tutti i client.
+     */
+    private void publish() {
+        payload.clear();
+        controller.codec.encodeButtons(controller.getButtonBoard(), -1, payload);
+        payload.flip();
+        int length = payload.remaining();
+
+        ByteBuffer tcp = ByteBuffer.allocate(length + 1);
+        tcp.put(payload.duplicate()).put((byte) '\n').flip();
+
+        // I messaggi dal server non sono mascherati e lo stato è sempre sotto
+        // i 126 byte, per cui l'intestazione è di due byte
+        ByteBuffer webSocket = ByteBuffer.allocate(length + 2);
+        webSocket.put((byte) (FIN | OPCODE_TEXT)).put((byte) length).put(payload).flip();
+
+        tcpFrame = tcp.asReadOnlyBuffer();
+        webSocketFrame = webSocket.asReadOnlyBuffer();
+        version++;
+
+        for (int i = subscribers.size() - 1; i >= 0; i--) {
+            Subscriber subscriber = subscribers.get(i);
+            try {
+                flush(subscriber);
+            } catch (IOException ex) {
+                disconnect(subscriber);
+            }
+        }
+    }
+
+    /**
+     * Accetta un client.
+     */
+    private void accept(ServerSocketChannel server, boolean webSocket) throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.socket().setSendBufferSize(SEND_BUFFER);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        Subscriber subscriber = new Subscriber(channel, key, webSocket);
+        key.attach(subscriber);
+        subscribers.add(subscriber);
+        subscriberCount = subscribers.size();
+
+        // I client TCP ricevono subito lo stato, quelli WebSocket dopo l'handshake
+        if (!webSocket) {
+            flush(subscriber);
+        }
+    }
+
+    /**
+     * Invia al client il buffer in corso e, se è stato pubblicato uno stato
+     * più recente dell'ultimo iniziato, passa direttamente all'ultimo.
+     */
+    private void flush(Subscriber subscriber) throws IOException {
+        while (true) {
+            if (subscriber.sending == null || !subscriber.sending.hasRemaining()) {
+                if (subscriber.closing) {
+                    disconnect(subscriber);
+                    return;
+                }
+                if (!subscriber.isReady() || subscriber.sentVersion == version) {
+                    subscriber.sending = null;
+                    subscriber.key.interestOps(SelectionKey.OP_READ);
+                    return;
+                }
+                if (subscriber.sentVersion > 0) {
+                    skippedFrames += version - subscriber.sentVersion - 1;
+                }
+                subscriber.sending = (subscriber.webSocket ? webSocketFrame : tcpFrame).duplicate();
+                subscriber.sentVersion = version;
+            }
+            subscriber.channel.write(subscriber.sending);
+            if (subscriber.sending.hasRemaining()) {
+                // Il client non riceve abbastanza in fretta
+                subscriber.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Legge i dati in arrivo da un client.
+     */
+    private void read(Subscriber subscriber) throws IOException {
+        if (!subscriber.webSocket) {
+            discard.clear();
+            if (subscriber.channel.read(discard) < 0) {
+                disconnect(subscriber);
+            }
+            return;
+        }
+        if (subscriber.request != null) {
+            if (subscriber.channel.read(subscriber.request) < 0) {
+                disconnect(subscriber);
+                return;
+            }
+            handshake(subscriber);
+            return;
+        }
+        if (subscriber.channel.read(subscriber.input) < 0) {
+            disconnect(subscriber);
+            return;
+        }
+        readMessages(subscriber);
+    }
+
+    /**
+     * Risponde alla richiesta di handshake WebSocket quando è completa.
+     */
+    private void handshake(Subscriber subscriber) throws IOException {
+        ByteBuffer request = subscriber.request;
+        String text = new String(request.array(), 0, request.position(), StandardCharsets.ISO_8859_1);
+        if (!text.contains("\r\n\r\n")) {
+            if (!request.hasRemaining()) {
+                reject(subscriber);
+            }
+            return;
+        }
+
+        String key = null;
+        for (String line : text.split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Sec-WebSocket-Key")) {
+                key = line.substring(colon + 1).trim();
+            }
+        }
+        if (key == null || !text.startsWith("GET ")) {
+            reject(subscriber);
+            return;
+        }
+
+        String response = "HTTP/1.1 101 Switching Protocols\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: " + acceptKey(key) + "\r\n\r\n";
+        subscriber.request = null;
+        subscriber.sending = ByteBuffer.wrap(response.getBytes(StandardCharsets.ISO_8859_1));
+        flush(subscriber);
+    }
+
+    /**
+     * Risponde con un errore a una richiesta che non è un handshake WebSocket
+     * e chiude la connessione.
+     */
+    private void reject(Subscriber subscriber) throws IOException {
+        subscriber.request = null;
+        subscriber.closing = true;
+        subscriber.sending = ByteBuffer.wrap("HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        flush(subscriber);
+    }
+
+    /**
+     *
+     * @param key
+     * @return il valore di Sec-WebSocket-Accept per la chiave del client
+     */
+    static String acceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return Base64.getEncoder().encodeToString(sha1.digest((key + WEBSOCKET_GUID).getBytes(StandardCharsets.ISO_8859_1)));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Scorre i messaggi arrivati da un client WebSocket: la chiusura chiude
+     * la connessione, gli altri vengono scartati.
+     */
+    private void readMessages(Subscriber subscriber) {
+        ByteBuffer input = subscriber.input;
+        input.flip();
+        while (true) {
+            if (subscriber.skip > 0) {
+                int skipped = (int) Math.min(subscriber.skip, input.remaining());
+                input.position(input.position() + skipped);
+                subscriber.skip -= skipped;
+                if (subscriber.skip > 0) {
+                    break;
+                }
+            }
+            if (input.remaining() < 2) {
+                break;
+            }
+            int start = input.position();
+            int opcode = input.get(start) & 0x0F;
+            int lengthCode = input.get(start + 1) & 0x7F;
+            boolean masked = (input.get(start + 1) & 0x80) != 0;
+            int header = 2 + (lengthCode == 126 ? 2 : lengthCode == 127 ? 8 : 0) + (masked ? 4 : 0);
+            if (input.remaining() < header) {
+                break;
+            }
+            long length = lengthCode == 126 ? input.getShort(start + 2) & 0xFFFF
+                    : lengthCode == 127 ? input.getLong(start + 2) : lengthCode;
+            if (opcode == OPCODE_CLOSE) {
+                input.clear();
+                disconnect(subscriber);
+                return;
+            }
+            input.position(start + header);
+            subscriber.skip = length;
+        }
+        input.compact();
+    }
+
+    /**
+     * Chiude la connessione con un client.
+     */
+    private void disconnect(Subscriber subscriber) {
+        subscriber.key.cancel();
+        try {
+            subscriber.channel.close();
+        } catch (IOException ex) {
+            Logger.getLogger(SarabandaGateway.class.getName()).log(Level.WARNING, null, ex);
+        }
+        subscribers.remove(subscriber);
+        subscriberCount = subscribers.size();
+    }
+
+    /**
+     *
+     * @return il numero dei client connessi
+     */
+    public int getSubscriberCount() {
+        return subscriberCount;
+    }
+
+    /**
+     *
+     * @return gli stati non inviati a client lenti perché superati da uno più recente
+     */
+    public long getSkippedFrames() {
+        return skippedFrames;
+    }
+
+    /**
+     * Ferma il gateway chiudendo tutte le connessioni.
+     */
+    @Override
+    public synchronized void close() {
+        controller.removeListener(this);
+        running = false;
+        selector.wakeup();
+        try {
+            ioThread.join(1000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        for (Subscriber subscriber : new ArrayList<>(subscribers)) {
+            disconnect(subscriber);
+        }
+        try {
+            if (tcpServer != null) {
+                tcpServer.close();
+            }
+            if (webSocketServer != null) {
+                webSocketServer.close();
+            }
+            selector.close();
+        } catch (IOException ex) {
+            Logger.getLogger(SarabandaGateway.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+}
@@ -0,0 +1,382 @@
+/*
+ * Copyright 2015 Elvis Del Tedesco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.phante.sarabandasaloon.network;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Giornale binario in sola aggiunta di tutti i datagrammi ricevuti e inviati,
+ * scritto su segmenti di file mappati in memoria. Registrare un pacchetto è
+ * una copia in memoria, senza chiamate di sistema, per cui non rallenta la
+ * ricezione; quando un segmento è pieno si passa al successivo e oltre
+ * maxSegments vengono cancellati i più vecchi.
+ *
+ * Ogni record è composto da: lunghezza del resto del record (int), direzione
+ * (byte), istante in nanosecondi (long), porta (int), lunghezza
+ * dell'indirizzo (byte), indirizzo e byte del datagramma. La lunghezza viene
+ * scritta per ultima, per cui un record troncato termina la lettura.
+ *
+ * @author deltedes
+ */
+public class SarabandaJournal implements AutoCloseable {
+
+    // Direzione dei pacchetti
+    public static final byte INBOUND = 0;
+    public static final byte OUTBOUND = 1;
+
+    // Dimensione predefinita di un segmento
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    // Numero predefinito di segmenti conservati
+    public static final int DEFAULT_MAX_SEGMENTS = 8;
+
+    // Estensione dei segmenti
+    private static final String SEGMENT_SUFFIX = ".srbj";
+    // Intestazione fissa del record dopo la lunghezza
+    private static final int RECORD_HEADER = Byte.BYTES + Long.BYTES + Integer.BYTES + Byte.BYTES;
+    // Spazio massimo occupato da un record
+    private static final int MAX_RECORD = Integer.BYTES + RECORD_HEADER + 16 + SarabandaFrame.MAX_SIZE;
+
+    // Cartella dei segmenti
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+
+    // Segmenti scritti, il più vecchio in testa
+    private final Deque<Path> segments = new ArrayDeque<>();
+    // Segmento corrente
+    private FileChannel channel;
+    private MappedByteBuffer map;
+    private int segmentIndex;
+
+    // Ultimo indirizzo convertito, per non allocare ad ogni pacchetto
+    private SocketAddress lastAddress;
+    private byte[] lastAddressBytes = new byte[0];
+    private int lastPort;
+
+    // Record scritti
+    private long records;
+    private boolean closed;
+
+    /**
+     *
+     * @param directory
+     * @param segmentSize
+     * @param maxSegments
+     * @throws IOException
+     */
+    public SarabandaJournal(Path directory, int segmentSize, int maxSegments) throws IOException {
+        if (segmentSize < MAX_RECORD + Integer.BYTES || maxSegments < 1) {
+            throw new IllegalArgumentException("Dimensioni del giornale non valide");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+
+        // Riprende dopo i segmenti già presenti
+        Files.createDirectories(directory);
+        List<Path> existing = segmentsOf(directory);
+        segments.addAll(existing);
+        segmentIndex = existing.isEmpty() ? 0 : indexOf(existing.get(existing.size() - 1)) + 1;
+        roll();
+
+        Logger.getLogger(SarabandaJournal.class.getName()).log(Level.INFO, "Registro i pacchetti in {0}", directory);
+    }
+
+    /**
+     * Apre un giornale con le dimensioni predefinite.
+     *
+     * @param directory
+     * @return
+     * @throws IOException
+     */
+    public static SarabandaJournal open(Path directory) throws IOException {
+        return new SarabandaJournal(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+    }
+
+    /**
+     * Registra un datagramma. Vengono copiati i byte tra position e limit,
+     * che restano invariati.
+     *
+     * @param direction INBOUND oppure OUTBOUND
+     * @param address mittente per i pacchetti ricevuti, destinatario per quelli inviati
+     * @param data
+     */
+    public synchronized void record(byte direction, SocketAddress address, ByteBuffer data) {
+        if (closed) {
+            return;
+        }
+        long now = System.nanoTime();
+        int length = Math.min(data.remaining(), SarabandaFrame.MAX_SIZE);
+
+        if (address != lastAddress && (address == null || !address.equals(lastAddress))) {
+            convertAddress(address);
+        }
+
+        try {
+            if (map.remaining() < MAX_RECORD + Integer.BYTES) {
+                roll();
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(SarabandaJournal.class.getName()).log(Level.SEVERE, null, ex);
+            closed = true;
+            return;
+        }
+
+        int start = map.position();
+        map.position(start + Integer.BYTES);
+        map.put(direction);
+        map.putLong(now);
+        map.putInt(lastPort);
+        map.put((byte) lastAddressBytes.length);
+        map.put(lastAddressBytes);
+
+        int position = data.position();
+        int limit = data.limit();
+        data.limit(position + length);
+        map.put(data);
+        data.limit(limit);
+        data.position(position);
+
+        // La lunghezza rende visibile il record
+        map.putInt(start, map.position() - start - Integer.BYTES);
+        records++;
+    }
+
+    /**
+     * Converte l'indirizzo nei byte da registrare.
+     */
+    private void convertAddress(SocketAddress address) {
+        lastAddress = address;
+        if (address instanceof InetSocketAddress && ((InetSocketAddress) address).getAddress() != null) {
+            InetSocketAddress socketAddress = (InetSocketAddress) address;
+            lastAddressBytes = socketAddress.getAddress().getAddress();
+            lastPort = socketAddress.getPort();
+        } else {
+            lastAddressBytes = new byte[0];
+            lastPort = 0;
+        }
+    }
+
+    /**
+     * Passa al segmento successivo cancellando i più vecchi.
+     */
+    private void roll() throws IOException {
+        if (channel != null) {
+            map.force();
+            channel.close();
+        }
+
+        Path segment = directory.resolve(String.format("journal-%08d%s", segmentIndex++, SEGMENT_SUFFIX));
+        channel = FileChannel.open(segment, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        segments.addLast(segment);
+
+        while (segments.size() > maxSegments) {
+            Files.deleteIfExists(segments.removeFirst());
+        }
+    }
+
+    /**
+     *
+     * @return il numero di record scritti
+     */
+    public synchronized long getRecords() {
+        return records;
+    }
+
+    /**
+     * Scrive su disco il segmento corrente e chiude il giornale.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            map.force();
+            channel.close();
+        } catch (IOException ex) {
+            Logger.getLogger(SarabandaJournal.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+    /**
+     * Elenca i segmenti di una cartella in ordine di scrittura.
+     *
+     * @param directory
+     * @return
+     * @throws IOException
+     */
+    static List<Path> segmentsOf(Path directory) throws IOException {
+        List<Path> result = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "journal-*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                result.add(path);
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     *
+     * @param segment
+     * @return il numero progressivo del segmento
+     */
+    private static int indexOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Integer.parseInt(name.substring("journal-".length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Lettore sequenziale di un giornale. I campi del record corrente sono
+     * validi fino alla chiamata successiva di next.
+     */
+    public static class Reader implements AutoCloseable {
+
+        private final List<Path> segments;
+        private int next;
+        private FileChannel channel;
+        private MappedByteBuffer map;
+
+        private byte direction;
+        private long nanos;
+        private SocketAddress address;
+        private final ByteBuffer data = ByteBuffer.allocate(SarabandaFrame.MAX_SIZE);
+
+        /**
+         *
+         * @param directory
+         * @throws IOException
+         */
+        public Reader(Path directory) throws IOException {
+            segments = segmentsOf(directory);
+        }
+
+        /**
+         * Avanza al record successivo.
+         *
+         * @return false alla fine del giornale
+         * @throws IOException
+         */
+        public boolean next() throws IOException {
+            while (true) {
+                if (map != null && map.remaining() >= Integer.BYTES) {
+                    int length = map.getInt();
+                    if (length > 0 && length <= map.remaining()) {
+                        read(length);
+                        return true;
+                    }
+                }
+                if (!openNext()) {
+                    return false;
+                }
+            }
+        }
+
+        /**
+         * Legge i campi del record corrente.
+         */
+        private void read(int length) throws IOException {
+            int end = map.position() + length;
+            direction = map.get();
+            nanos = map.getLong();
+            int port = map.getInt();
+            byte[] addressBytes = new byte[map.get()];
+            map.get(addressBytes);
+            address = addressBytes.length == 0 ? null : new InetSocketAddress(InetAddress.getByAddress(addressBytes), port);
+
+            data.clear();
+            int limit = map.limit();
+            map.limit(end);
+            data.put(map);
+            map.limit(limit);
+            data.flip();
+        }
+
+        /**
+         * Apre il segmento successivo.
+         */
+        private boolean openNext() throws IOException {
+            close();
+            if (next >= segments.size()) {
+                return false;
+            }
+            channel = FileChannel.open(segments.get(next++), StandardOpenOption.READ);
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return true;
+        }
+
+        /**
+         *
+         * @return INBOUND oppure OUTBOUND
+         */
+        public byte getDirection() {
+            return direction;
+        }
+
+        /**
+         *
+         * @return l'istante di registrazione secondo System.nanoTime
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         *
+         * @return
+         */
+        public SocketAddress getAddress() {
+            return address;
+        }
+
+        /**
+         *
+         * @return i byte del datagramma, riutilizzati dal record successivo
+         */
+        public ByteBuffer getData() {
+            return data;
+        }
+
+        @Override
+        public void close() throws IOException {
+            map = null;
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+}
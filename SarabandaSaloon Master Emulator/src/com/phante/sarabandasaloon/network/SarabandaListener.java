@@ -0,0 +1,63 @@
+/*
+ * Copyright 2015 Elvis Del Tedesco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.phante.sarabandasaloon.network;
+
+import com.phante.sarabandasaloon.entity.PushButtonStatus;
+
+/**
+ * Eventi del controller Sarabanda. I metodi vengono invocati dal thread che
+ * ha generato l'evento, tipicamente quello di ricezione dei pacchetti, per
+ * cui chi deve aggiornare una UI deve occuparsi del cambio di thread.
+ *
+ * @author deltedes
+ */
+public interface SarabandaListener {
+
+    /**
+     * Cambio di stato del server UDP.
+     *
+     * @param status una delle costanti SERVER_* di SarabandaController
+     */
+    default void serverStatusChanged(int status) {
+    }
+
+    /**
+     * Arrivo di un pacchetto Sarabanda. Il frame viene riutilizzato per i
+     * pacchetti successivi e va copiato se serve conservarlo.
+     *
+     * @param frame
+     */
+    default void messageReceived(SarabandaFrame frame) {
+    }
+
+    /**
+     * Cambio di stato di un pulsante.
+     *
+     * @param button
+     * @param status
+     */
+    default void buttonStatusChanged(int button, PushButtonStatus status) {
+    }
+
+    /**
+     * Cambio della modalità di funzionamento.
+     *
+     * @param classicMode
+     * @param localhostOnly
+     */
+    default void modeChanged(boolean classicMode, boolean localhostOnly) {
+    }
+}
@@ -27,18 +27,24 @@ import java.util.logging.Logger;
  */
 public class SarabandaMasterController extends SarabandaController{
 
+    // Proprietà di sistema con il numero dei pulsanti del tabellone
+    public static final String BUTTON_NUMBER_PROPERTY = "sarabanda.buttons";
+
     /**
      * Inizializza lo stato del controller andando a creare il servizio che si
      * occupa della lettura dei pacchetti di rete e i pulsanti.
      */
     private SarabandaMasterController() {
-        super();
+        super(Integer.getInteger(BUTTON_NUMBER_PROPERTY, DEFAULT_BUTTON_NUMBER));
         
         // Imposta la modalità di funzionamento per il master a nuovo
         udpSendPort = UDP_SLAVE_PORT;
         udpListenPort = UDP_MASTER_PORT;
-        classicModeProperty.setValue(Boolean.FALSE);
-        
+        classicMode = false;
+
+        // Espone le metriche del master
+        metrics.register("master");
+
         Logger.getLogger(SarabandaMasterController.class.getName()).log(Level.INFO, "Impostazione del master in ascolto su porta {0} con invio su porta {1}", new Object[]{udpListenPort, udpSendPort});
         Logger.getLogger(SarabandaMasterController.class.getName()).log(Level.INFO, "Impostazione del master con invio messaggi verso ip {0}", broadcastAddress.getHostAddress());
     }
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2015 Elvis Del Tedesco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.phante.sarabandasaloon.network;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Riproduce in un controller i pacchetti ricevuti registrati in un
+ * SarabandaJournal, con le stesse regole del servizio di ricezione: i
+ * pacchetti non Sarabanda e quelli identici al precedente vengono scartati.
+ * La riproduzione può rispettare i tempi originali oppure procedere alla
+ * massima velocità.
+ *
+ * @author deltedes
+ */
+public class SarabandaReplay {
+
+    // Controller che riceve i pacchetti
+    private final SarabandaController controller;
+
+    /**
+     *
+     * @param controller
+     */
+    public SarabandaReplay(SarabandaController controller) {
+        this.controller = controller;
+    }
+
+    /**
+     * Riproduce un giornale.
+     *
+     * @param directory cartella dei segmenti
+     * @param realTime true per rispettare gli intervalli originali
+     * @return il numero di pacchetti riprodotti
+     * @throws IOException
+     */
+    public long replay(Path directory, boolean realTime) throws IOException {
+        SarabandaFrame frame = new SarabandaFrame();
+        long replayed = 0;
+        long start = System.nanoTime();
+        long base = System.nanoTime();
+        long firstNanos = 0;
+        boolean first = true;
+
+        try (SarabandaJournal.Reader reader = new SarabandaJournal.Reader(directory)) {
+            while (reader.next()) {
+                if (reader.getDirection() != SarabandaJournal.INBOUND) {
+                    continue;
+                }
+
+                if (realTime) {
+                    // Un salto all'indietro indica un riavvio del processo registrato
+                    if (first || reader.getNanos() < firstNanos) {
+                        firstNanos = reader.getNanos();
+                        base = System.nanoTime();
+                        first = false;
+                    }
+                    long target = base + (reader.getNanos() - firstNanos);
+                    long wait;
+                    while ((wait = target - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+
+                frame.load(reader.getData(), reader.getAddress());
+                if (controller.codec.decode(frame) == null) {
+                    controller.eventLog.invalid(controller.udpListenPort, frame);
+                    continue;
+                }
+
+                controller.handleFrame(frame);
+                replayed++;
+            }
+        }
+
+        long elapsed = System.nanoTime() - start;
+        Logger.getLogger(SarabandaReplay.class.getName()).log(Level.INFO, "Riprodotti {0} pacchetti in {1} ms", new Object[]{replayed, elapsed / 1_000_000L});
+        return replayed;
+    }
+}
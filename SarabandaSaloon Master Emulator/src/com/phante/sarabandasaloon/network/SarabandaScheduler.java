@@ -0,0 +1,48 @@
+/*
+ * Copyright 2015 Elvis Del Tedesco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.phante.sarabandasaloon.network;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+/**
+ * Thread di servizio condiviso da tutti i controller per le attività
+ * temporizzate, come la chiusura delle finestre di arbitraggio e il reinvio
+ * periodico dello stato.
+ *
+ * @author deltedes
+ */
+final class SarabandaScheduler {
+
+    private SarabandaScheduler() {
+    }
+
+    /**
+     *
+     * @return
+     */
+    static ScheduledExecutorService getInstance() {
+        return SarabandaSchedulerHolder.INSTANCE;
+    }
+
+    private static class SarabandaSchedulerHolder {
+        private static final ScheduledExecutorService INSTANCE = new ScheduledThreadPoolExecutor(1, task -> {
+            Thread thread = new Thread(task, "sarabanda-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
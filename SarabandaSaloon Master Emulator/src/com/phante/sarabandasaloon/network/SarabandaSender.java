@@ -0,0 +1,375 @@
+/*
+ * Copyright 2015 Elvis Del Tedesco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.phante.sarabandasaloon.network;
+
+import com.phante.sarabandasaloon.entity.PushButtonBoard;
+import com.phante.sarabandasaloon.entity.PushButtonStatus;
+import com.phante.sarabandasaloon.metrics.LatencyStage;
+import com.phante.sarabandasaloon.metrics.SarabandaMetrics;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Canale di invio dei pacchetti Sarabanda. Il canale resta aperto per tutta
+ * la vita del controller e tutti i pacchetti a contenuto fisso sono codificati
+ * una sola volta: ogni comando senza parametri e, fino a TABLE_MAX_BUTTONS
+ * pulsanti, ogni combinazione di stati indicizzata con la parola di
+ * PushButtonBoard. Oltre quella soglia la tabella crescerebbe come 4^N, per
+ * cui i pacchetti B vengono codificati al momento in un buffer riutilizzato.
+ *
+ * @author deltedes
+ */
+public class SarabandaSender {
+
+    // Numero massimo di pulsanti per cui precalcolare i pacchetti B
+    public static final int TABLE_MAX_BUTTONS = 6;
+    // Proprietà di sistema con la frazione dei pacchetti da scartare per
+    // simulare una rete con perdite, da 0 a 1
+    public static final String SIMULATED_LOSS_PROPERTY = "sarabanda.simulated.loss";
+
+    // Codec per i pacchetti codificati al momento
+    private final SarabandaCodec codec;
+
+    // Pacchetti B indicizzati per combinazione di stati, null se i pulsanti sono troppi
+    private final ByteBuffer[] buttonFrames;
+    // Pacchetti dei comandi indicizzati per ordinale
+    private final ByteBuffer[] commandFrames;
+    // Buffer per i messaggi a contenuto libero
+    private final ByteBuffer scratch = ByteBuffer.allocateDirect(SarabandaFrame.MAX_SIZE);
+
+    // Canale di invio, aperto alla prima spedizione
+    private DatagramChannel channel;
+    // Destinazione dei pacchetti
+    private volatile SocketAddress destination;
+    // Giornale dei pacchetti inviati, null se non attivo
+    private volatile SarabandaJournal journal;
+    // Metriche di invio, null se non attive
+    private volatile SarabandaMetrics metrics;
+    // Aggiunge il numero di sequenza ai pacchetti di stato e ai comandi
+    private volatile boolean sequenced;
+    // Ultimo numero di sequenza inviato
+    private int sequence;
+    // Porta locale del canale, -1 fino al primo invio
+    private volatile int localPort = -1;
+    // Interfaccia per i pacchetti multicast, null per quella predefinita
+    private NetworkInterface multicastInterface;
+    // Frazione dei pacchetti scartati prima dell'invio
+    private volatile double simulatedLoss = Double.parseDouble(System.getProperty(SIMULATED_LOSS_PROPERTY, "0"));
+
+    /**
+     *
+     * @param codec
+     */
+    public SarabandaSender(SarabandaCodec codec) {
+        this.codec = codec;
+        buttonFrames = (codec.getButtonNumber() <= TABLE_MAX_BUTTONS) ? buildButtonFrames(codec) : null;
+
+
+        // Codifica i comandi senza parametri
+        commandFrames = new ByteBuffer[SarabandaCommand.values().length];
+        for (SarabandaCommand command : SarabandaCommand.values()) {
+            if (command != SarabandaCommand.BUTTON && command != SarabandaCommand.INVALID) {
+                ByteBuffer frame = ByteBuffer.allocateDirect(SarabandaCodec.HEADER.length + command.text().length());
+                codec.encode(command, frame);
+                frame.flip();
+                commandFrames[command.ordinal()] = frame;
+            }
+        }
+    }
+
+    /**
+     * Codifica tutte le combinazioni di stati in un unico buffer.
+     *
+     * @param codec
+     * @return
+     */
+    private static ByteBuffer[] buildButtonFrames(SarabandaCodec codec) {
+        int buttonNumber = codec.getButtonNumber();
+        int frameLength = codec.buttonFrameLength();
+
+        ByteBuffer[] buttonFrames = new ByteBuffer[1 << (PushButtonBoard.BITS_PER_BUTTON * buttonNumber)];
+        ByteBuffer table = ByteBuffer.allocateDirect(buttonFrames.length * frameLength);
+        PushButtonStatus[] statuses = new PushButtonStatus[buttonNumber];
+        for (int index = 0; index < buttonFrames.length; index++) {
+            for (int i = 0; i < buttonNumber; i++) {
+                statuses[i] = PushButtonBoard.status(index, i);
+            }
+            table.limit(table.position() + frameLength);
+            ByteBuffer frame = table.slice();
+            codec.encodeButtons(statuses, frame);
+            frame.flip();
+            buttonFrames[index] = frame;
+            table.position(table.limit());
+        }
+        return buttonFrames;
+    }
+
+    /**
+     * Imposta la destinazione dei pacchetti.
+     *
+     * @param address
+     * @param port
+     */
+    public void setDestination(InetAddress address, int port) {
+        destination = new InetSocketAddress(address, port);
+    }
+
+    /**
+     * Imposta l'interfaccia da cui partono i pacchetti verso un gruppo
+     * multicast. Il canale viene riaperto al prossimo invio.
+     *
+     * @param networkInterface null per l'interfaccia predefinita
+     */
+    public synchronized void setMulticastInterface(NetworkInterface networkInterface) {
+        multicastInterface = networkInterface;
+        close();
+    }
+
+    /**
+     * Imposta il giornale su cui registrare i pacchetti inviati.
+     *
+     * @param journal null per disattivare la registrazione
+     */
+    public void setJournal(SarabandaJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Imposta le metriche su cui contare gli invii.
+     *
+     * @param metrics
+     */
+    public void setMetrics(SarabandaMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Attiva il numero di sequenza in fondo ai pacchetti di stato e ai
+     * comandi. I ricevitori che non lo gestiscono scartano i pacchetti B
+     * così estesi, per cui va attivato solo se tutti lo supportano.
+     *
+     * @param sequenced
+     */
+    public void setSequenced(boolean sequenced) {
+        this.sequenced = sequenced;
+    }
+
+    /**
+     *
+     * @return
+     */
+    public boolean isSequenced() {
+        return sequenced;
+    }
+
+    /**
+     * Imposta la frazione dei pacchetti da scartare invece di inviarli, per
+     * provare su loopback il comportamento con una rete con perdite.
+     *
+     * @param loss da 0 a 1
+     */
+    public void setSimulatedLoss(double loss) {
+        simulatedLoss = loss;
+    }
+
+    /**
+     *
+     * @return il prossimo numero di sequenza
+     */
+    synchronized int nextSequence() {
+        return ++sequence;
+    }
+
+    /**
+     *
+     * @return la porta locale da cui partono i pacchetti, -1 se non è
+     * ancora stato inviato nulla
+     */
+    public int getLocalPort() {
+        return localPort;
+    }
+
+    /**
+     * Invia il pacchetto B con lo stato dei pulsanti.
+     *
+     * @param board
+     * @param pressedButton pulsante da considerare premuto, -1 per nessuno
+     */
+    public synchronized void sendButtons(PushButtonBoard board, int pressedButton) {
+        if (buttonFrames != null) {
+            long word = board.getWord(0);
+            if (pressedButton >= 0) {
+                word = PushButtonBoard.with(word, pressedButton, PushButtonStatus.PRESSED);
+            }
+            sendSequenced(buttonFrames[(int) word]);
+        } else {
+            scratch.clear();
+            codec.encodeButtons(board, pressedButton, scratch);
+            if (sequenced) {
+                codec.encodeSequence(++sequence, scratch);
+            }
+            scratch.flip();
+            send(scratch, destination);
+        }
+    }
+
+    /**
+     * Invia un comando senza parametri.
+     *
+     * @param command
+     */
+    public synchronized void sendCommand(SarabandaCommand command) {
+        sendSequenced(commandFrames[command.ordinal()]);
+    }
+
+    /**
+     * Invia un pacchetto precalcolato aggiungendo se richiesto il numero di
+     * sequenza.
+     *
+     * @param frame
+     */
+    private void sendSequenced(ByteBuffer frame) {
+        if (sequenced) {
+            send(frame, ++sequence);
+        } else {
+            send(frame, destination);
+        }
+    }
+
+    /**
+     * Invia un comando con il numero di sequenza indicato, usato per le
+     * ritrasmissioni che devono mantenere il numero originale.
+     *
+     * @param command
+     * @param sequence
+     */
+    public synchronized void sendCommand(SarabandaCommand command, int sequence) {
+        send(commandFrames[command.ordinal()], sequence);
+    }
+
+    /**
+     * Invia la conferma di un comando ricevuto.
+     *
+     * @param command
+     * @param sequence
+     */
+    public synchronized void sendAck(SarabandaCommand command, int sequence) {
+        scratch.clear();
+        codec.encodeAck(command, sequence, scratch);
+        scratch.flip();
+        send(scratch, destination);
+    }
+
+    /**
+     * Invia un pacchetto precalcolato seguito dal numero di sequenza.
+     *
+     * @param frame
+     * @param sequence
+     */
+    private void send(ByteBuffer frame, int sequence) {
+        frame.rewind();
+        scratch.clear();
+        scratch.put(frame);
+        codec.encodeSequence(sequence, scratch);
+        scratch.flip();
+        send(scratch, destination);
+    }
+
+    /**
+     * Invia un messaggio a contenuto libero.
+     *
+     * @param message
+     * @param to
+     */
+    public synchronized void send(String message, SocketAddress to) {
+        scratch.clear();
+        for (int i = 0; i < message.length() && scratch.hasRemaining(); i++) {
+            scratch.put((byte) message.charAt(i));
+        }
+        scratch.flip();
+        send(scratch, to);
+    }
+
+    /**
+     * Invia un pacchetto già codificato. Il buffer viene riavvolto prima
+     * dell'invio per cui i pacchetti precalcolati possono essere riusati.
+     *
+     * @param frame
+     * @param to
+     */
+    public synchronized void send(ByteBuffer frame, SocketAddress to) {
+        try {
+            // Riapre il canale anche se è stato chiuso dall'interruzione del thread chiamante
+            if (channel == null || !channel.isOpen()) {
+                channel = DatagramChannel.open(StandardProtocolFamily.INET);
+                channel.setOption(StandardSocketOptions.SO_BROADCAST, true);
+                if (multicastInterface != null) {
+                    channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, multicastInterface);
+                    // Anche i tabelloni sulla stessa macchina devono ricevere
+                    channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+                }
+                localPort = -1;
+            }
+            frame.rewind();
+            double loss = simulatedLoss;
+            if (loss > 0 && ThreadLocalRandom.current().nextDouble() < loss) {
+                return;
+            }
+            SarabandaJournal current = journal;
+            if (current != null) {
+                current.record(SarabandaJournal.OUTBOUND, to, frame);
+            }
+            long start = System.nanoTime();
+            channel.send(frame, to);
+            LatencyStage.SEND.recordSince(start);
+            if (localPort < 0) {
+                localPort = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+            }
+            if (metrics != null) {
+                metrics.packetSent();
+            }
+        } catch (IOException ex) {
+            if (metrics != null) {
+                metrics.sendFailed();
+            }
+            Logger.getLogger(SarabandaSender.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Chiude il canale di invio.
+     */
+    public synchronized void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                Logger.getLogger(SarabandaSender.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015 Elvis Del Tedesco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.phante.sarabandasaloon.network;
+
+import java.net.InetAddress;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Partita gestita da un SarabandaSessionManager. Non possiede un proprio
+ * server UDP: i pacchetti le vengono consegnati dal thread di I/O condiviso
+ * tramite il worker a cui è assegnata.
+ *
+ * @author deltedes
+ */
+public class SarabandaSession extends SarabandaController {
+
+    // Identificativo della sessione
+    private final int sessionId;
+    // Porta su cui arrivano i pacchetti della sessione
+    private final int listenPort;
+
+    /**
+     *
+     * @param sessionId
+     * @param listenPort
+     * @param buttonNumber
+     */
+    SarabandaSession(int sessionId, int listenPort, int buttonNumber) {
+        super(buttonNumber);
+        this.sessionId = sessionId;
+        this.listenPort = listenPort;
+        udpListenPort = listenPort;
+    }
+
+    /**
+     *
+     * @return
+     */
+    public int getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     *
+     * @return
+     */
+    public int getListenPort() {
+        return listenPort;
+    }
+
+    /**
+     * Imposta la destinazione dei pacchetti della sessione, ad esempio
+     * l'indirizzo del tabellone quando la sessione è identificata dal
+     * mittente.
+     *
+     * @param address
+     * @param port
+     */
+    public void setSendAddress(InetAddress address, int port) {
+        broadcastAddress = address;
+        udpSendPort = port;
+        sender.setDestination(address, port);
+    }
+
+    /**
+     * La ricezione è a carico del gestore delle sessioni, la sessione avvia
+     * solo il reinvio periodico dello stato.
+     */
+    @Override
+    public void startServer() {
+        Logger.getLogger(SarabandaSession.class.getName()).log(Level.FINE, "La sessione {0} riceve dal gestore delle sessioni", sessionId);
+        startResync();
+    }
+
+    /**
+     * La ricezione è a carico del gestore delle sessioni.
+     */
+    @Override
+    public void stopServer() {
+        stopResync();
+    }
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright 2015 Elvis Del Tedesco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.phante.sarabandasaloon.network;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Gestore di molte partite indipendenti nello stesso processo. Tutte le porte
+ * sono servite da un unico thread di I/O con un Selector, mentre
+ * l'elaborazione dei pacchetti è suddivisa tra pochi worker: ogni sessione è
+ * assegnata sempre allo stesso worker, per cui i suoi pacchetti vengono
+ * elaborati in ordine e da un solo thread.
+ *
+ * Una sessione è identificata dalla porta di ascolto oppure, su una porta
+ * condivisa, dall'indirizzo del tabellone che invia i pacchetti.
+ *
+ * @author deltedes
+ */
+public class SarabandaSessionManager implements AutoCloseable {
+
+    // Dimensione dell'anello di ogni worker
+    private static final int WORKER_QUEUE = 1024;
+
+    // Selettore condiviso da tutte le porte
+    private final Selector selector;
+    // Worker di elaborazione
+    private final SessionWorker[] workers;
+    // Porte aperte
+    private final Map<Integer, PortBinding> ports = new ConcurrentHashMap<>();
+    // Sessioni per identificativo
+    private final Map<Integer, SarabandaSession> sessions = new ConcurrentHashMap<>();
+    // Operazioni da eseguire sul thread di I/O
+    private final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+    // Giornale dei pacchetti ricevuti, null se non attivo
+    private volatile SarabandaJournal journal;
+    // Generatore degli identificativi di sessione
+    private final AtomicInteger nextSessionId = new AtomicInteger();
+
+    // Thread di I/O
+    private final Thread ioThread;
+    private volatile boolean running;
+
+    /**
+     * Associazione tra una porta e le sue sessioni.
+     */
+    private static class PortBinding {
+
+        private final DatagramChannel channel;
+        // Sessione che riceve i pacchetti di mittenti non registrati
+        private volatile SarabandaSession portSession;
+        // Sessioni identificate dal mittente
+        private final Map<InetAddress, SarabandaSession> bySender = new ConcurrentHashMap<>();
+
+        PortBinding(DatagramChannel channel) {
+            this.channel = channel;
+        }
+
+        SarabandaSession lookup(SocketAddress from) {
+            if (!bySender.isEmpty() && from instanceof InetSocketAddress) {
+                SarabandaSession session = bySender.get(((InetSocketAddress) from).getAddress());
+                if (session != null) {
+                    return session;
+                }
+            }
+            return portSession;
+        }
+    }
+
+    /**
+     *
+     * @param workerNumber numero dei worker di elaborazione
+     * @throws IOException
+     */
+    public SarabandaSessionManager(int workerNumber) throws IOException {
+        selector = Selector.open();
+        workers = new SessionWorker[workerNumber];
+        for (int i = 0; i < workerNumber; i++) {
+            workers[i] = new SessionWorker("sarabanda-session-worker-" + i, WORKER_QUEUE);
+        }
+        ioThread = new Thread(this::select, "sarabanda-session-io");
+        ioThread.setDaemon(true);
+    }
+
+    /**
+     * Avvia il thread di I/O e i worker.
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        for (SessionWorker worker : workers) {
+            worker.start();
+        }
+        ioThread.start();
+    }
+
+    /**
+     * Crea una sessione che riceve tutti i pacchetti di una porta.
+     *
+     * @param listenPort
+     * @param buttonNumber
+     * @return
+     * @throws IOException
+     */
+    public SarabandaSession createSession(int listenPort, int buttonNumber) throws IOException {
+        SarabandaSession session = newSession(listenPort, buttonNumber);
+        binding(listenPort).portSession = session;
+        return session;
+    }
+
+    /**
+     * Crea una sessione che riceve, su una porta condivisa, i pacchetti di un
+     * solo tabellone.
+     *
+     * @param listenPort
+     * @param slave indirizzo del tabellone
+     * @param buttonNumber
+     * @return
+     * @throws IOException
+     */
+    public SarabandaSession createSession(int listenPort, InetAddress slave, int buttonNumber) throws IOException {
+        SarabandaSession session = newSession(listenPort, buttonNumber);
+        binding(listenPort).bySender.put(slave, session);
+        return session;
+    }
+
+    /**
+     * Rimuove una sessione e chiude la sua porta se non ne restano altre.
+     *
+     * @param session
+     */
+    public void removeSession(SarabandaSession session) {
+        sessions.remove(session.getSessionId());
+        PortBinding binding = ports.get(session.getListenPort());
+        if (binding != null) {
+            if (binding.portSession == session) {
+                binding.portSession = null;
+            }
+            binding.bySender.values().remove(session);
+            if (binding.portSession == null && binding.bySender.isEmpty()) {
+                ports.remove(session.getListenPort());
+                runOnIOThread(() -> closeChannel(binding.channel));
+            }
+        }
+        session.close();
+    }
+
+    /**
+     * Imposta il giornale su cui registrare i pacchetti di tutte le porte e
+     * quelli inviati dalle sessioni.
+     *
+     * @param journal null per disattivare la registrazione
+     */
+    public void setJournal(SarabandaJournal journal) {
+        this.journal = journal;
+        for (SarabandaSession session : sessions.values()) {
+            session.setJournal(journal);
+        }
+    }
+
+    /**
+     *
+     * @return
+     */
+    public Collection<SarabandaSession> getSessions() {
+        return Collections.unmodifiableCollection(sessions.values());
+    }
+
+    /**
+     *
+     * @return il numero di pacchetti scartati perché i worker erano saturi
+     */
+    public long getDropped() {
+        long dropped = 0;
+        for (SessionWorker worker : workers) {
+            dropped += worker.getDropped();
+        }
+        return dropped;
+    }
+
+    /**
+     * Crea e registra una nuova sessione.
+     */
+    private SarabandaSession newSession(int listenPort, int buttonNumber) {
+        SarabandaSession session = new SarabandaSession(nextSessionId.getAndIncrement(), listenPort, buttonNumber);
+        session.setJournal(journal);
+        session.getMetrics().register("session-" + session.getSessionId());
+        sessions.put(session.getSessionId(), session);
+        Logger.getLogger(SarabandaSessionManager.class.getName()).log(Level.INFO, "Creata la sessione {0} sulla porta {1}", new Object[]{session.getSessionId(), listenPort});
+        return session;
+    }
+
+    /**
+     * Restituisce l'associazione di una porta aprendo il canale se necessario.
+     */
+    private synchronized PortBinding binding(int port) throws IOException {
+        PortBinding binding = ports.get(port);
+        if (binding == null) {
+            DatagramChannel channel = DatagramChannel.open();
+            channel.setOption(StandardSocketOptions.SO_BROADCAST, true);
+            channel.bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+
+            PortBinding created = new PortBinding(channel);
+            ports.put(port, created);
+            // La registrazione deve avvenire sul thread che esegue la select
+            runOnIOThread(() -> {
+                try {
+                    channel.register(selector, SelectionKey.OP_READ, created);
+                } catch (IOException ex) {
+                    Logger.getLogger(SarabandaSessionManager.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            });
+            binding = created;
+        }
+        return binding;
+    }
+
+    /**
+     * Accoda un'operazione per il thread di I/O e lo risveglia.
+     */
+    private void runOnIOThread(Runnable task) {
+        pending.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Loop del thread di I/O.
+     */
+    private void select() {
+        // Buffer di ricezione condiviso da tutte le porte
+        ByteBuffer buffer = ByteBuffer.allocateDirect(SarabandaFrame.MAX_SIZE);
+
+        while (running) {
+            try {
+                Runnable task;
+                while ((task = pending.poll()) != null) {
+                    task.run();
+                }
+
+                selector.select();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid() || !key.isReadable()) {
+                        continue;
+                    }
+
+                    PortBinding binding = (PortBinding) key.attachment();
+                    DatagramChannel channel = (DatagramChannel) key.channel();
+
+                    // Svuota il canale prima di passare al successivo
+                    SocketAddress from;
+                    while (true) {
+                        buffer.clear();
+                        from = channel.receive(buffer);
+                        if (from == null) {
+                            break;
+                        }
+                        buffer.flip();
+
+                        SarabandaJournal current = journal;
+                        if (current != null) {
+                            current.record(SarabandaJournal.INBOUND, from, buffer);
+                        }
+
+                        SarabandaSession session = binding.lookup(from);
+                        if (session != null) {
+                            session.metrics.packetReceived();
+                            workers[session.getSessionId() % workers.length].offer(session, buffer, from);
+                        }
+                    }
+                }
+            } catch (IOException ex) {
+                Logger.getLogger(SarabandaSessionManager.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Chiude un canale ignorando gli errori.
+     */
+    private static void closeChannel(DatagramChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            Logger.getLogger(SarabandaSessionManager.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+    /**
+     * Ferma il thread di I/O, i worker e chiude tutte le porte e le sessioni.
+     */
+    @Override
+    public synchronized void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            ioThread.join(1000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        for (SessionWorker worker : workers) {
+            worker.stop();
+        }
+        for (PortBinding binding : ports.values()) {
+            closeChannel(binding.channel);
+        }
+        ports.clear();
+        for (SarabandaSession session : sessions.values()) {
+            session.close();
+        }
+        sessions.clear();
+        try {
+            selector.close();
+        } catch (IOException ex) {
+            Logger.getLogger(SarabandaSessionManager.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+}
@@ -0,0 +1,617 @@
+/*
+ * Copyright 2015 Elvis Del Tedesco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.phante.sarabandasaloon.network;
+
+import com.phante.sarabandasaloon.entity.PushButtonBoard;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Storia della partita: ogni transizione dello stato dei pulsanti viene
+ * aggiunta come evento a un registro in sola aggiunta, scritto come il
+ * giornale dei pacchetti su segmenti di file mappati in memoria, e ogni
+ * snapshotInterval eventi viene salvata un'istantanea dello stato.
+ *
+ * Ogni evento è composto da: lunghezza del resto del record (int), numero
+ * progressivo (long), istante in millisecondi dall'epoca (long), comando
+ * (byte, ordinale di SarabandaCommand), origine (byte), pulsante (byte, -1
+ * se non riguarda un pulsante), numero di parole (byte) e parole dello stato
+ * dopo l'evento. La lunghezza viene scritta per ultima, per cui un record
+ * troncato termina la lettura.
+ *
+ * L'istantanea contiene il numero dell'ultimo evento incluso, lo stato e la
+ * posizione nel registro dell'evento successivo. All'apertura il registro
+ * carica l'istantanea più recente e rilegge solo gli eventi successivi,
+ * per cui lo stato si ricostruisce leggendo al massimo snapshotInterval
+ * eventi. L'istantanea viene scritta sul thread di SarabandaScheduler, su
+ * un file temporaneo rinominato a scrittura completata.
+ *
+ * @author deltedes
+ */
+public class SarabandaStateLog implements AutoCloseable {
+
+    // Origine degli eventi
+    public static final byte RECEIVED = 0;
+    public static final byte SENT = 1;
+    public static final byte LOCAL = 2;
+
+    // Dimensione predefinita di un segmento
+    public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+    // Numero predefinito di segmenti conservati
+    public static final int DEFAULT_MAX_SEGMENTS = 64;
+    // Eventi predefiniti tra due istantanee
+    public static final int DEFAULT_SNAPSHOT_INTERVAL = 1000;
+
+    private static final SarabandaCommand[] COMMANDS = SarabandaCommand.values();
+
+    // Estensione dei segmenti e nome dell'istantanea
+    private static final String SEGMENT_PREFIX = "events-";
+    private static final String SEGMENT_SUFFIX = ".srbe";
+    private static final String SNAPSHOT = "snapshot.srbs";
+    private static final String SNAPSHOT_TEMP = "snapshot.srbs.tmp";
+    // Intestazione fissa del record dopo la lunghezza
+    private static final int RECORD_HEADER = Long.BYTES + Long.BYTES + 4 * Byte.BYTES;
+    // Spazio massimo occupato da un record
+    private static final int MAX_RECORD = Integer.BYTES + RECORD_HEADER + PushButtonBoard.MAX_WORDS * Long.BYTES;
+    // Spazio massimo occupato dall'istantanea
+    private static final int SNAPSHOT_SIZE = Long.BYTES + Long.BYTES + Integer.BYTES + Integer.BYTES + Byte.BYTES + PushButtonBoard.MAX_WORDS * Long.BYTES;
+
+    // Cartella del registro
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final int snapshotInterval;
+
+    // Segmenti scritti, il più vecchio in testa
+    private final Deque<Path> segments = new ArrayDeque<>();
+    // Segmento corrente
+    private FileChannel channel;
+    private MappedByteBuffer map;
+    private int segmentIndex;
+
+    // Stato dopo l'ultimo evento e relativo numero
+    private final long[] words = new long[PushButtonBoard.MAX_WORDS];
+    private int wordCount;
+    private long lastNumber;
+    // Eventi riletti all'apertura dopo l'istantanea
+    private final long replayed;
+    // Eventi scritti dall'ultima istantanea
+    private int sinceSnapshot;
+    // Ultimo evento incluso nell'istantanea su disco, protetto da snapshotLock
+    private final Object snapshotLock = new Object();
+    private long snapshotNumber;
+    private boolean closed;
+
+    /**
+     * Apre il registro ricostruendo lo stato dall'istantanea e dagli eventi
+     * successivi.
+     *
+     * @param directory
+     * @param segmentSize
+     * @param maxSegments
+     * @param snapshotInterval
+     * @throws IOException
+     */
+    public SarabandaStateLog(Path directory, int segmentSize, int maxSegments, int snapshotInterval) throws IOException {
+        if (segmentSize < MAX_RECORD + Integer.BYTES || maxSegments < 1 || snapshotInterval < 1) {
+            throw new IllegalArgumentException("Dimensioni del registro non valide");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        this.snapshotInterval = snapshotInterval;
+
+        Files.createDirectories(directory);
+        long start = System.nanoTime();
+        replayed = recover();
+        Logger.getLogger(SarabandaStateLog.class.getName()).log(Level.INFO, "Stato ricostruito in {0} ms con {1} eventi dopo l''istantanea, ultimo evento {2}",
+                new Object[]{String.format("%.2f", (System.nanoTime() - start) / 1e6), replayed, lastNumber});
+
+        // Riprende dopo i segmenti già presenti
+        List<Path> existing = segmentsOf(directory);
+        segments.addAll(existing);
+        segmentIndex = existing.isEmpty() ? 0 : indexOf(existing.get(existing.size() - 1)) + 1;
+        roll();
+    }
+
+    /**
+     * Apre un registro con le dimensioni predefinite.
+     *
+     * @param directory
+     * @return
+     * @throws IOException
+     */
+    public static SarabandaStateLog open(Path directory) throws IOException {
+        return new SarabandaStateLog(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS, DEFAULT_SNAPSHOT_INTERVAL);
+    }
+
+    /**
+     * Carica l'istantanea e applica gli eventi successivi.
+     *
+     * @return il numero di eventi applicati dopo l'istantanea
+     */
+    private long recover() throws IOException {
+        int fromSegment = -1;
+        int fromOffset = 0;
+        Path snapshot = directory.resolve(SNAPSHOT);
+        if (Files.exists(snapshot)) {
+            ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(snapshot));
+            lastNumber = data.getLong();
+            snapshotNumber = lastNumber;
+            data.getLong();
+            fromSegment = data.getInt();
+            fromOffset = data.getInt();
+            wordCount = data.get();
+            for (int w = 0; w < wordCount; w++) {
+                words[w] = data.getLong();
+            }
+        }
+
+        // Se il segmento dell'istantanea non c'è più si scorrono tutti gli
+        // eventi, applicando solo quelli successivi
+        long count = 0;
+        try (Reader reader = new Reader(directory)) {
+            if (!reader.seek(fromSegment, fromOffset)) {
+                reader.rewind();
+            }
+            while (reader.next()) {
+                if (reader.getNumber() <= lastNumber) {
+                    continue;
+                }
+                lastNumber = reader.getNumber();
+                wordCount = reader.getWordCount();
+                for (int w = 0; w < wordCount; w++) {
+                    words[w] = reader.getWord(w);
+                }
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Registra una transizione con lo stato che ne risulta.
+     *
+     * @param command
+     * @param origin RECEIVED, SENT oppure LOCAL
+     * @param button pulsante interessato, -1 se nessuno
+     * @param board stato dei pulsanti dopo la transizione
+     */
+    public synchronized void record(SarabandaCommand command, byte origin, int button, PushButtonBoard board) {
+        if (closed) {
+            return;
+        }
+        try {
+            if (map.remaining() < MAX_RECORD + Integer.BYTES) {
+                roll();
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(SarabandaStateLog.class.getName()).log(Level.SEVERE, null, ex);
+            closed = true;
+            return;
+        }
+
+        int start = map.position();
+        map.position(start + Integer.BYTES);
+        map.putLong(++lastNumber);
+        map.putLong(System.currentTimeMillis());
+        map.put((byte) command.ordinal());
+        map.put(origin);
+        map.put((byte) button);
+        wordCount = board.wordCount();
+        map.put((byte) wordCount);
+        for (int w = 0; w < wordCount; w++) {
+            words[w] = board.getWord(w);
+            map.putLong(words[w]);
+        }
+
+        // La lunghezza rende visibile il record
+        map.putInt(start, map.position() - start - Integer.BYTES);
+
+        if (++sinceSnapshot >= snapshotInterval) {
+            snapshot();
+        }
+    }
+
+    /**
+     * Salva l'istantanea dello stato dopo l'ultimo evento sul thread di
+     * SarabandaScheduler.
+     */
+    private void snapshot() {
+        sinceSnapshot = 0;
+        ByteBuffer data = snapshotData();
+        long number = lastNumber;
+        SarabandaScheduler.getInstance().execute(() -> writeSnapshot(number, data));
+    }
+
+    /**
+     *
+     * @return l'istantanea dello stato dopo l'ultimo evento
+     */
+    private ByteBuffer snapshotData() {
+        ByteBuffer data = ByteBuffer.allocate(SNAPSHOT_SIZE);
+        data.putLong(lastNumber);
+        data.putLong(System.currentTimeMillis());
+        data.putInt(segmentIndex - 1);
+        data.putInt(map.position());
+        data.put((byte) wordCount);
+        for (int w = 0; w < wordCount; w++) {
+            data.putLong(words[w]);
+        }
+        data.flip();
+        return data;
+    }
+
+    /**
+     * Scrive l'istantanea sostituendo la precedente, a meno che non ne sia
+     * già stata scritta una più recente.
+     *
+     * @param number ultimo evento incluso nell'istantanea
+     * @param data
+     */
+    private void writeSnapshot(long number, ByteBuffer data) {
+        synchronized (snapshotLock) {
+            if (number <= snapshotNumber) {
+                return;
+            }
+            Path temp = directory.resolve(SNAPSHOT_TEMP);
+            try (FileChannel file = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (data.hasRemaining()) {
+                    file.write(data);
+                }
+                file.force(true);
+                Files.move(temp, directory.resolve(SNAPSHOT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                snapshotNumber = number;
+            } catch (IOException ex) {
+                Logger.getLogger(SarabandaStateLog.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Passa al segmento successivo cancellando i più vecchi.
+     */
+    private void roll() throws IOException {
+        if (channel != null) {
+            map.force();
+            channel.close();
+        }
+
+        Path segment = directory.resolve(String.format(SEGMENT_PREFIX + "%08d%s", segmentIndex++, SEGMENT_SUFFIX));
+        channel = FileChannel.open(segment, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        segments.addLast(segment);
+
+        while (segments.size() > maxSegments) {
+            Files.deleteIfExists(segments.removeFirst());
+        }
+    }
+
+    /**
+     * Copia sul tabellone lo stato ricostruito, se ha lo stesso numero di
+     * pulsanti.
+     *
+     * @param board
+     * @return false se non c'è uno stato da ricostruire o se il tabellone è
+     * diverso
+     */
+    public synchronized boolean restore(PushButtonBoard board) {
+        if (lastNumber == 0 || wordCount != board.wordCount()) {
+            return false;
+        }
+        for (int w = 0; w < wordCount; w++) {
+            board.setWord(w, words[w]);
+        }
+        return true;
+    }
+
+    /**
+     *
+     * @return il numero dell'ultimo evento registrato
+     */
+    public synchronized long getLastNumber() {
+        return lastNumber;
+    }
+
+    /**
+     *
+     * @return gli eventi riletti all'apertura dopo l'istantanea
+     */
+    public long getReplayed() {
+        return replayed;
+    }
+
+    /**
+     * Salva l'istantanea, scrive su disco il segmento corrente e chiude il
+     * registro.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        ByteBuffer data = (sinceSnapshot > 0) ? snapshotData() : null;
+        try {
+            map.force();
+            channel.close();
+        } catch (IOException ex) {
+            Logger.getLogger(SarabandaStateLog.class.getName()).log(Level.WARNING, null, ex);
+        }
+        if (data != null) {
+            writeSnapshot(lastNumber, data);
+        }
+    }
+
+    /**
+     * Elenca i segmenti di una cartella in ordine di scrittura.
+     *
+     * @param directory
+     * @return
+     * @throws IOException
+     */
+    static List<Path> segmentsOf(Path directory) throws IOException {
+        List<Path> result = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                result.add(path);
+            }
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     *
+     * @param segment
+     * @return il numero progressivo del segmento
+     */
+    private static int indexOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Lettore sequenziale degli eventi, per ricostruire lo stato e per
+     * l'analisi dopo lo spettacolo. I campi dell'evento corrente sono validi
+     * fino alla chiamata successiva di next.
+     *
+     * Il filtro limita gli eventi restituiti a un intervallo di tempo e a un
+     * comando; gli eventi esclusi vengono saltati senza leggerne lo stato.
+     */
+    public static class Reader implements AutoCloseable {
+
+        private final List<Path> segments;
+        private int next;
+        private FileChannel channel;
+        private MappedByteBuffer map;
+
+        // Filtro sugli eventi
+        private long fromMillis = Long.MIN_VALUE;
+        private long toMillis = Long.MAX_VALUE;
+        private SarabandaCommand command;
+
+        private long number;
+        private long millis;
+        private SarabandaCommand eventCommand;
+        private byte origin;
+        private int button;
+        private final long[] eventWords = new long[PushButtonBoard.MAX_WORDS];
+        private int eventWordCount;
+
+        /**
+         *
+         * @param directory
+         * @throws IOException
+         */
+        public Reader(Path directory) throws IOException {
+            segments = segmentsOf(directory);
+        }
+
+        /**
+         * Limita gli eventi a quelli registrati nell'intervallo indicato.
+         *
+         * @param fromMillis inizio incluso, in millisecondi dall'epoca
+         * @param toMillis fine esclusa, in millisecondi dall'epoca
+         * @return
+         */
+        public Reader between(long fromMillis, long toMillis) {
+            this.fromMillis = fromMillis;
+            this.toMillis = toMillis;
+            return this;
+        }
+
+        /**
+         * Limita gli eventi a quelli con il comando indicato.
+         *
+         * @param command null per tutti i comandi
+         * @return
+         */
+        public Reader only(SarabandaCommand command) {
+            this.command = command;
+            return this;
+        }
+
+        /**
+         * Posiziona la lettura all'interno di un segmento.
+         *
+         * @param segment numero progressivo del segmento
+         * @param offset
+         * @return false se il segmento non esiste
+         * @throws IOException
+         */
+        boolean seek(int segment, int offset) throws IOException {
+            for (int i = 0; i < segments.size(); i++) {
+                if (indexOf(segments.get(i)) == segment) {
+                    next = i;
+                    openNext();
+                    map.position(Math.min(offset, map.limit()));
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Riporta la lettura all'inizio del registro.
+         *
+         * @throws IOException
+         */
+        void rewind() throws IOException {
+            close();
+            next = 0;
+        }
+
+        /**
+         * Avanza all'evento successivo che rispetta il filtro.
+         *
+         * @return false alla fine del registro
+         * @throws IOException
+         */
+        public boolean next() throws IOException {
+            while (true) {
+                if (map != null && map.remaining() >= Integer.BYTES) {
+                    int length = map.getInt();
+                    if (length > 0 && length <= map.remaining()) {
+                        int end = map.position() + length;
+                        if (read()) {
+                            return true;
+                        }
+                        map.position(end);
+                        continue;
+                    }
+                }
+                if (!openNext()) {
+                    return false;
+                }
+            }
+        }
+
+        /**
+         * Legge l'evento corrente.
+         *
+         * @return false se l'evento è escluso dal filtro
+         */
+        private boolean read() {
+            number = map.getLong();
+            millis = map.getLong();
+            eventCommand = COMMANDS[map.get()];
+            if (millis < fromMillis || millis >= toMillis || (command != null && eventCommand != command)) {
+                return false;
+            }
+            origin = map.get();
+            button = map.get();
+            eventWordCount = map.get();
+            for (int w = 0; w < eventWordCount; w++) {
+                eventWords[w] = map.getLong();
+            }
+            return true;
+        }
+
+        /**
+         * Apre il segmento successivo.
+         */
+        private boolean openNext() throws IOException {
+            close();
+            if (next >= segments.size()) {
+                return false;
+            }
+            channel = FileChannel.open(segments.get(next++), StandardOpenOption.READ);
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return true;
+        }
+
+        /**
+         *
+         * @return il numero progressivo dell'evento
+         */
+        public long getNumber() {
+            return number;
+        }
+
+        /**
+         *
+         * @return l'istante dell'evento in millisecondi dall'epoca
+         */
+        public long getMillis() {
+            return millis;
+        }
+
+        /**
+         *
+         * @return
+         */
+        public SarabandaCommand getCommand() {
+            return eventCommand;
+        }
+
+        /**
+         *
+         * @return RECEIVED, SENT oppure LOCAL
+         */
+        public byte getOrigin() {
+            return origin;
+        }
+
+        /**
+         *
+         * @return il pulsante interessato, -1 se nessuno
+         */
+        public int getButton() {
+            return button;
+        }
+
+        /**
+         *
+         * @return il numero di parole dello stato
+         */
+        public int getWordCount() {
+            return eventWordCount;
+        }
+
+        /**
+         *
+         * @param word
+         * @return una parola dello stato dopo l'evento
+         */
+        public long getWord(int word) {
+            return eventWords[word];
+        }
+
+        @Override
+        public void close() throws IOException {
+            map = null;
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+}
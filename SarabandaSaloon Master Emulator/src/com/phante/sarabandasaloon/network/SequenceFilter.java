@@ -0,0 +1,62 @@
+/*
+ * Copyright 2015 Elvis Del Tedesco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.phante.sarabandasaloon.network;
+
+import java.net.SocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Scarta i pacchetti duplicati o arrivati fuori ordine confrontando il loro
+ * numero di sequenza con l'ultimo accettato dallo stesso mittente. I numeri
+ * sono confrontati con l'aritmetica dei numeri seriali, per cui il passaggio
+ * da 2^32 - 1 a 0 non richiede gestione particolare; un numero molto più
+ * basso dell'ultimo viene invece considerato un riavvio del mittente.
+ *
+ * Va usato da un solo thread, quello che elabora i pacchetti del controller.
+ *
+ * @author deltedes
+ */
+class SequenceFilter {
+
+    // Distanza all'indietro oltre la quale il mittente è considerato riavviato
+    static final int RESTART_DISTANCE = 64;
+
+    // Ultimo numero accettato per mittente, l'array evita il boxing
+    private final Map<SocketAddress, int[]> lastSequence = new HashMap<>();
+
+    /**
+     * Verifica un numero di sequenza e, se accettato, lo memorizza.
+     *
+     * @param sender
+     * @param sequence
+     * @return false se il pacchetto è un duplicato o è più vecchio
+     * dell'ultimo accettato
+     */
+    boolean accept(SocketAddress sender, int sequence) {
+        int[] last = lastSequence.get(sender);
+        if (last == null) {
+            lastSequence.put(sender, new int[]{sequence});
+            return true;
+        }
+        int distance = sequence - last[0];
+        if (distance <= 0 && distance >= -RESTART_DISTANCE) {
+            return false;
+        }
+        last[0] = sequence;
+        return true;
+    }
+}
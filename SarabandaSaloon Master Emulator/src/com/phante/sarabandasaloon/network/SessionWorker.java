@@ -0,0 +1,160 @@
+/*
+ * Copyright 2015 Elvis Del Tedesco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.phante.sarabandasaloon.network;
+
+import com.phante.sarabandasaloon.metrics.LatencyStage;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Worker che elabora i pacchetti di un gruppo di sessioni. I pacchetti
+ * arrivano dal thread di I/O tramite un anello di frame preallocati con un
+ * solo produttore e un solo consumatore, per cui il passaggio non alloca;
+ * quando l'anello è pieno il pacchetto viene scartato e conteggiato.
+ *
+ * @author deltedes
+ */
+class SessionWorker implements Runnable {
+
+    // Attesa massima quando non ci sono pacchetti
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    // Frame e sessioni di destinazione, indicizzati allo stesso modo
+    private final SarabandaFrame[] frames;
+    private final SarabandaSession[] sessions;
+    private final int mask;
+
+    // Prossimo frame da elaborare
+    private final AtomicLong head = new AtomicLong();
+    // Prossimo frame da scrivere
+    private final AtomicLong tail = new AtomicLong();
+    // Pacchetti scartati per anello pieno
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final Thread thread;
+    private volatile boolean waiting;
+    private volatile boolean running = true;
+
+    /**
+     *
+     * @param name
+     * @param capacity potenza di 2
+     */
+    SessionWorker(String name, int capacity) {
+        if (Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("La capacità deve essere una potenza di 2: " + capacity);
+        }
+        frames = new SarabandaFrame[capacity];
+        sessions = new SarabandaSession[capacity];
+        for (int i = 0; i < capacity; i++) {
+            frames[i] = new SarabandaFrame();
+        }
+        mask = capacity - 1;
+
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Avvia il worker.
+     */
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Accoda un pacchetto per una sessione. Va invocato solo dal thread di I/O.
+     *
+     * @param session
+     * @param buffer
+     * @param from
+     * @return false se l'anello è pieno e il pacchetto è stato scartato
+     */
+    boolean offer(SarabandaSession session, ByteBuffer buffer, SocketAddress from) {
+        long t = tail.get();
+        if (t - head.get() >= frames.length) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        int index = (int) (t & mask);
+        frames[index].load(buffer, from);
+        sessions[index] = session;
+        tail.set(t + 1);
+
+        if (waiting) {
+            LockSupport.unpark(thread);
+        }
+        return true;
+    }
+
+    /**
+     * Loop di elaborazione.
+     */
+    @Override
+    public void run() {
+        while (running) {
+            long h = head.get();
+            if (h == tail.get()) {
+                waiting = true;
+                if (h == tail.get()) {
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                }
+                waiting = false;
+                continue;
+            }
+
+            int index = (int) (h & mask);
+            SarabandaSession session = sessions[index];
+            SarabandaFrame frame = frames[index];
+            sessions[index] = null;
+            try {
+                long decoding = System.nanoTime();
+                SarabandaCommand command = session.codec.decode(frame);
+                LatencyStage.DECODE.recordSince(decoding);
+                if (command != null) {
+                    session.handleFrame(frame);
+                } else {
+                    session.metrics.packetInvalid();
+                    session.eventLog.invalid(session.getListenPort(), frame);
+                }
+            } catch (RuntimeException ex) {
+                Logger.getLogger(SessionWorker.class.getName()).log(Level.SEVERE, null, ex);
+            }
+            head.lazySet(h + 1);
+        }
+    }
+
+    /**
+     *
+     * @return
+     */
+    long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Ferma il worker.
+     */
+    void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+}
@@ -15,118 +15,473 @@
  */
 package com.phante.sarabandasaloon.network;
 
+import com.phante.sarabandasaloon.metrics.LatencyStage;
+import com.phante.sarabandasaloon.metrics.SarabandaMetrics;
 import java.io.IOException;
-import java.net.BindException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.SocketException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javafx.beans.property.SimpleStringProperty;
-import javafx.beans.property.StringProperty;
-import javafx.concurrent.Service;
-import javafx.concurrent.Task;
 
 /**
+ * Servizio di ricezione dei pacchetti Sarabanda su un thread dedicato, senza
+ * dipendenze da JavaFX.
+ *
+ * Un unico selettore ascolta tutte le porte configurate, che possono essere
+ * aggiunte e tolte con il servizio attivo: le modifiche vengono eseguite dal
+ * thread del selettore, e una porta viene chiusa solo dopo aver elaborato i
+ * pacchetti già in coda sul suo canale. Lo spegnimento sveglia il selettore,
+ * per cui non serve inviare pacchetti al servizio per sbloccarlo.
+ *
+ * I canali sono IPv4 come il broadcast del protocollo. Con un gruppo
+ * multicast impostato ogni canale si iscrive al gruppo sull'interfaccia
+ * indicata; anche l'iscrizione può essere cambiata con il servizio attivo.
  *
  * @author deltedes
  */
-public class UDPServerService extends Service<Void> {
+public class UDPServerService {
 
     // Dimensione massima del buffer di ricezione
-    private static final int BUFFERSIZE = 256;
-    // Porta udp del server
-    private final int serverUdpPort;
-    
-    // Property per il contenuto del messaggio
-    public final StringProperty packet = new SimpleStringProperty();
-    // Propertry per il contenuto del sender
-    public final StringProperty sender = new SimpleStringProperty();
-    
-    private final String messageRegex;
+    private static final int BUFFERSIZE = SarabandaFrame.MAX_SIZE;
+    // Attesa massima della fine del thread allo spegnimento
+    private static final long STOP_TIMEOUT_MILLIS = 1000;
+
+    // Codec per la decodifica dei pacchetti
+    private final SarabandaCodec codec;
+    // Log strutturato degli eventi dei pacchetti
+    private final SarabandaEventLog eventLog = SarabandaEventLog.getInstance();
+
+    // Destinatario dei pacchetti Sarabanda validi
+    private volatile Consumer<SarabandaFrame> frameHandler = frame -> {
+    };
+    // Giornale dei pacchetti ricevuti, null se non attivo
+    private volatile SarabandaJournal journal;
+    // Metriche di ricezione, null se non attive
+    private volatile SarabandaMetrics metrics;
+    // Destinatario dei cambi di stato del servizio
+    private volatile IntConsumer statusHandler = status -> {
+    };
+
+    // Porte configurate, protette da this
+    private final Set<Integer> ports = new LinkedHashSet<>();
+    // Gruppo multicast e interfaccia su cui ascoltarlo, null se non attivo
+    private volatile InetAddress group;
+    private volatile NetworkInterface networkInterface;
+
+    // Operazioni da eseguire sul thread del selettore
+    private final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+    // Canali aperti e iscrizioni ai gruppi per porta, usati solo dal thread
+    // del selettore
+    private final Map<Integer, DatagramChannel> channels = new HashMap<>();
+    private final Map<Integer, MembershipKey> memberships = new HashMap<>();
+    // Buffer e frame riutilizzati per tutti i pacchetti dal thread del selettore
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFERSIZE);
+    private final SarabandaFrame frame = new SarabandaFrame();
+
+    // Thread di ricezione e relativo selettore
+    private Thread thread;
+    private Selector selector;
+    // Richiesta di spegnimento
+    private volatile boolean cancelled;
 
     /**
      *
-     * @param udpPort
+     * @param udpPort prima porta di ascolto
+     * @param codec
      */
-    public UDPServerService(int udpPort) {
-        this.serverUdpPort = udpPort;
-        messageRegex = new StringBuilder()
-                .append("^")
-                .append(SarabandaController.MESSAGE_HEADER)
-                .append(".+")
-                .toString();
+    public UDPServerService(int udpPort, SarabandaCodec codec) {
+        this.codec = codec;
+        ports.add(udpPort);
     }
-    
+
     /**
+     * Imposta il gestore dei pacchetti validi. Il gestore viene invocato dal
+     * thread di ricezione con un frame già decodificato e riutilizzato ad ogni
+     * pacchetto.
      *
-     * @return
+     * @param handler
+     */
+    public void setOnFrame(Consumer<SarabandaFrame> handler) {
+        frameHandler = handler;
+    }
+
+    /**
+     * Imposta il gestore dei cambi di stato del servizio, che riceve le
+     * costanti SERVER_* di SarabandaController.
+     *
+     * @param handler
+     */
+    public void setOnStatus(IntConsumer handler) {
+        statusHandler = handler;
+    }
+
+    /**
+     * Imposta il giornale su cui registrare tutti i pacchetti ricevuti,
+     * compresi quelli non Sarabanda.
+     *
+     * @param journal null per disattivare la registrazione
+     */
+    public void setJournal(SarabandaJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Imposta le metriche su cui contare i pacchetti ricevuti.
+     *
+     * @param metrics
+     */
+    public void setMetrics(SarabandaMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Aggiunge una porta di ascolto. Con il servizio attivo la porta viene
+     * aperta subito, prima di qualunque rimozione richiesta dopo, per cui
+     * sostituire una porta aggiungendo la nuova e togliendo la vecchia non
+     * perde pacchetti.
+     *
+     * @param port
+     */
+    public synchronized void addPort(int port) {
+        if (ports.add(port) && isRunning()) {
+            runOnSelectorThread(() -> openPort(port));
+        }
+    }
+
+    /**
+     * Toglie una porta di ascolto, dopo aver elaborato i pacchetti già
+     * ricevuti dal suo canale.
+     *
+     * @param port
+     */
+    public synchronized void removePort(int port) {
+        if (ports.remove(port) && isRunning()) {
+            runOnSelectorThread(() -> closePort(port));
+        }
+    }
+
+    /**
+     *
+     * @return le porte configurate
+     */
+    public synchronized int[] getPorts() {
+        int[] result = new int[ports.size()];
+        int i = 0;
+        for (int port : ports) {
+            result[i++] = port;
+        }
+        return result;
+    }
+
+    /**
+     * Imposta il gruppo multicast da ascoltare su tutte le porte oltre ai
+     * pacchetti indirizzati direttamente.
+     *
+     * @param group null per lasciare il gruppo corrente
+     * @param networkInterface interfaccia su cui iscriversi al gruppo
+     */
+    public synchronized void setMulticast(InetAddress group, NetworkInterface networkInterface) {
+        this.group = group;
+        this.networkInterface = networkInterface;
+        if (isRunning()) {
+            runOnSelectorThread(this::updateMemberships);
+        }
+    }
+
+    /**
+     * Avvia il thread di ricezione se non è già attivo.
+     */
+    public synchronized void start() {
+        if (isRunning()) {
+            return;
+        }
+        try {
+            selector = Selector.open();
+        } catch (IOException ex) {
+            Logger.getLogger(UDPServerService.class.getName()).log(Level.SEVERE, null, ex);
+            return;
+        }
+        cancelled = false;
+        pending.clear();
+        statusHandler.accept(SarabandaController.SERVER_UNKNOWN);
+
+        // Le porte presenti ora vengono aperte dal thread, quelle aggiunte
+        // dopo arrivano come operazioni in coda
+        int[] initial = getPorts();
+        Selector current = selector;
+        thread = new Thread(() -> receive(current, initial), "sarabanda-udp");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Spegne il servizio svegliando il selettore e attende la fine del thread
+     * di ricezione, per cui il servizio può essere riavviato subito.
      */
-    public StringProperty packetProperty() {
-        return packet;
+    public void cancel() {
+        Thread current;
+        synchronized (this) {
+            cancelled = true;
+            if (selector != null) {
+                selector.wakeup();
+            }
+            current = thread;
+        }
+        if (current != null && current != Thread.currentThread()) {
+            try {
+                current.join(STOP_TIMEOUT_MILLIS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
-    
+
     /**
      *
      * @return
      */
-    public StringProperty senderProperty() {
-        return sender;
+    public synchronized boolean isRunning() {
+        return thread != null && thread.isAlive() && !cancelled;
     }
 
     /**
      *
      * @return
      */
-    @Override
-    protected Task<Void> createTask() {
+    public boolean isCancelled() {
+        return cancelled;
+    }
 
-        return new Task<Void>() {
-            @Override
-            protected Void call() {
+    /**
+     * Accoda un'operazione per il thread del selettore.
+     *
+     * @param task
+     */
+    private void runOnSelectorThread(Runnable task) {
+        pending.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Apre il canale di una porta e lo registra sul selettore.
+     *
+     * @param port
+     * @return false se la porta non è stata aperta
+     */
+    private boolean openPort(int port) {
+        if (channels.containsKey(port)) {
+            return true;
+        }
+        DatagramChannel channel = null;
+        try {
+            channel = DatagramChannel.open(StandardProtocolFamily.INET);
+            channel.setOption(StandardSocketOptions.SO_BROADCAST, true);
+            // Più iscritti allo stesso gruppo sulla stessa macchina devono
+            // poter condividere la porta
+            if (group != null) {
+                channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            }
+            channel.bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, port);
+            channels.put(port, channel);
+            join(port, channel);
+            Logger.getLogger(UDPServerService.class.getName()).log(Level.INFO, "Avvio il server UDP in ascolto sulla porta {0}", String.valueOf(port));
+            return true;
+        } catch (IOException ex) {
+            Logger.getLogger(UDPServerService.class.getName()).log(Level.SEVERE, "Impossibile ascoltare sulla porta " + port, ex);
+            if (channel != null) {
                 try {
-                    Logger.getLogger(UDPServerService.class.getName()).log(Level.INFO, "Avvio il server UDP in ascolto sulla porta {0}", serverUdpPort);
-                    // Apre il socket
-                    DatagramSocket socket = new DatagramSocket(serverUdpPort);
-                    socket.setBroadcast(true);
-
-                    // Loop principale che controlla lo stato del task e lo rende interrompibile
-                    while (!isCancelled()) {
-
-                        // Riceve un pacchetto
-                        byte[] recvBuf = new byte[BUFFERSIZE];
-                        DatagramPacket recvPacket = new DatagramPacket(recvBuf, recvBuf.length);
-                        socket.receive(recvPacket);
-
-                        if (!isCancelled()) {
-                            // Valuto se è un messaggio Sarabanda Valido
-                            String message = new String(recvPacket.getData());
-                            message = message.trim();
-                            
-                            Logger.getLogger(UDPServerService.class.getName()).log(Level.INFO, 
-                                    "Ricevuto il messaggio {0} che {1} un messaggio Sarabanda valido secondo {2}", 
-                                    new Object[]{message, (message.matches(messageRegex)? "è":"non è"), messageRegex} );
-                                                       
-                            if (message.matches(messageRegex)) {
-                                sender.setValue(recvPacket.getAddress().getHostAddress());
-                                packet.setValue(message);
-                            }
-                        } else {
-                            // Chiude il socket
-                            Logger.getLogger(UDPServerService.class.getName()).log(Level.ALL, "Spengo il server UDP");
-                            socket.close();
-                        }
+                    channel.close();
+                } catch (IOException closeEx) {
+                    Logger.getLogger(UDPServerService.class.getName()).log(Level.WARNING, null, closeEx);
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Chiude il canale di una porta dopo averne svuotato la coda.
+     *
+     * @param port
+     */
+    private void closePort(int port) {
+        DatagramChannel channel = channels.remove(port);
+        if (channel == null) {
+            return;
+        }
+        memberships.remove(port);
+        try {
+            drain(channel, port);
+            channel.close();
+            // Completa la deregistrazione, così la porta può essere riaperta subito
+            selector.selectNow();
+            Logger.getLogger(UDPServerService.class.getName()).log(Level.INFO, "Chiudo la porta {0}", String.valueOf(port));
+        } catch (IOException ex) {
+            Logger.getLogger(UDPServerService.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Iscrive il canale di una porta al gruppo multicast corrente, se
+     * impostato.
+     *
+     * @param port
+     * @param channel
+     * @throws IOException
+     */
+    private void join(int port, DatagramChannel channel) throws IOException {
+        InetAddress currentGroup = group;
+        if (currentGroup != null) {
+            memberships.put(port, channel.join(currentGroup, networkInterface));
+            Logger.getLogger(UDPServerService.class.getName()).log(Level.INFO, "Iscrizione al gruppo {0} su {1} per la porta {2}", new Object[]{currentGroup.getHostAddress(), networkInterface.getName(), String.valueOf(port)});
+        }
+    }
+
+    /**
+     * Allinea l'iscrizione di tutti i canali al gruppo impostato.
+     */
+    private void updateMemberships() {
+        for (MembershipKey membership : memberships.values()) {
+            membership.drop();
+        }
+        memberships.clear();
+        for (Map.Entry<Integer, DatagramChannel> entry : channels.entrySet()) {
+            try {
+                join(entry.getKey(), entry.getValue());
+            } catch (IOException ex) {
+                Logger.getLogger(UDPServerService.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Loop di ricezione.
+     *
+     * @param selector
+     * @param initial porte da aprire all'avvio
+     */
+    private void receive(Selector selector, int[] initial) {
+        try {
+            boolean bound = false;
+            for (int port : initial) {
+                bound |= openPort(port);
+            }
+            if (!bound) {
+                Logger.getLogger(UDPServerService.class.getName()).log(Level.SEVERE, "Nessuna porta di ascolto disponibile");
+                return;
+            }
+            statusHandler.accept(SarabandaController.SERVER_STARTED);
+
+            // Loop principale che controlla lo stato del servizio e lo rende interrompibile
+            while (!isCancelled()) {
+                selector.select();
+
+                // Le modifiche alle porte vengono applicate nell'ordine richiesto
+                Runnable task;
+                while ((task = pending.poll()) != null) {
+                    task.run();
+                }
+                if (isCancelled()) {
+                    break;
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isReadable()) {
+                        drain((DatagramChannel) key.channel(), (Integer) key.attachment());
                     }
-                } catch (BindException ex) {
-                    Logger.getLogger(UDPServerService.class.getName()).log(Level.SEVERE, null, ex);
-                } catch (SocketException ex) {
-                    Logger.getLogger(UDPServerService.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+            Logger.getLogger(UDPServerService.class.getName()).log(Level.INFO, "Spengo il server UDP");
+        } catch (IOException ex) {
+            Logger.getLogger(UDPServerService.class.getName()).log(Level.SEVERE, null, ex);
+        } finally {
+            // La chiusura dei canali annulla anche le iscrizioni ai gruppi
+            for (DatagramChannel channel : channels.values()) {
+                try {
+                    channel.close();
                 } catch (IOException ex) {
-                    Logger.getLogger(UDPServerService.class.getName()).log(Level.SEVERE, null, ex);
+                    Logger.getLogger(UDPServerService.class.getName()).log(Level.WARNING, null, ex);
                 }
-                return null;
             }
-        };
+            channels.clear();
+            memberships.clear();
+            try {
+                selector.close();
+            } catch (IOException ex) {
+                Logger.getLogger(UDPServerService.class.getName()).log(Level.WARNING, null, ex);
+            }
+            cancelled = true;
+            statusHandler.accept(SarabandaController.SERVER_STOPPED);
+        }
     }
 
+    /**
+     * Elabora tutti i pacchetti in coda su un canale.
+     *
+     * @param channel
+     * @param port porta del canale
+     * @throws IOException
+     */
+    private void drain(DatagramChannel channel, int port) throws IOException {
+        while (true) {
+            // Riceve un pacchetto
+            buffer.clear();
+            SocketAddress from = channel.receive(buffer);
+            if (from == null) {
+                return;
+            }
+            long received = System.nanoTime();
+            buffer.flip();
+
+            SarabandaJournal current = journal;
+            if (current != null) {
+                current.record(SarabandaJournal.INBOUND, from, buffer);
+            }
+            SarabandaMetrics counters = metrics;
+            if (counters != null) {
+                counters.packetReceived();
+            }
+
+            // Valuto se è un messaggio Sarabanda Valido direttamente sui byte
+            frame.load(buffer, from);
+            LatencyStage.RECEIVE.recordSince(received);
+            long decoding = System.nanoTime();
+            SarabandaCommand command = codec.decode(frame);
+            LatencyStage.DECODE.recordSince(decoding);
+            if (command == null) {
+                if (counters != null) {
+                    counters.packetInvalid();
+                }
+                eventLog.invalid(port, frame);
+                continue;
+            }
+
+            // I pacchetti propri e quelli ripetuti vengono scartati dal
+            // controller, che invia lo stato solo se è cambiato
+            frameHandler.accept(frame);
+        }
+    }
 }
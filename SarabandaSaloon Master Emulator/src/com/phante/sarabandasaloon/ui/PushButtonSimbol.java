@@ -16,59 +16,77 @@
 package com.phante.sarabandasaloon.ui;
 
 import com.phante.sarabandasaloon.entity.PushButtonStatus;
-import java.util.HashMap;
-import java.util.Map;
-import javafx.scene.layout.StackPane;
-import javafx.scene.paint.Color;
-import javafx.scene.shape.FillRule;
-import javafx.scene.shape.SVGPath;
+import com.phante.sarabandasaloon.metrics.LatencyStage;
+import javafx.geometry.HPos;
+import javafx.geometry.VPos;
+import javafx.scene.image.ImageView;
+import javafx.scene.layout.Region;
 
 /**
+ * Simbolo dello stato di un pulsante. Il simbolo è una sola ImageView che
+ * mostra l'immagine dello stato presa da PushButtonSimbolCache, per cui
+ * cambiare stato costa il cambio di un'immagine anche con molti pulsanti a
+ * video.
  *
  * @author deltedes
  */
-public class PushButtonSimbol extends StackPane {
+public class PushButtonSimbol extends Region {
     public static final String ENABLED = "M0 80 L20 100 L100 20 L80 0 Z";
     public static final String PRESSED = "M0 30 L 0 70 L30 100 L70 100 L100 70 L100 30 L70 0 L30 0 Z";
     public static final String ERROR = "M0 10 L40 50 L0 90 L10 100 L50 60 L90 100 L100 90 L60 50 L100 10 L90 0 L50 40 L10 0 Z";
     public static final String DISABLED = "M0 20 L0 40 L20 40 L20 60 L0 60 L0 80 L20 80 L20 100 L40 100 L40 80 L60 80 L60 100 L80 100 L80 80 L100 80 L100 60 L80 60 L80 40 L100 40 L100 20 L80 20 L80 0 L60 0 L60 20 L40 20 L40 0 L20 0 L20 20 Z";
-    
-    public Map<PushButtonStatus, SVGPath> simbols = new HashMap<>();
-            
+
+    private final ImageView view = new ImageView();
+
+    // Stato mostrato e lato in pixel dell'immagine corrente
+    private PushButtonStatus status = PushButtonStatus.ENABLED;
+    private int size;
+
     public PushButtonSimbol () {
         super();
-        
-        for (PushButtonStatus status: PushButtonStatus.values()) {
-            SVGPath simbol = new SVGPath();
-            simbol.setFillRule(FillRule.NON_ZERO);
-            simbol.setVisible(status == PushButtonStatus.ENABLED);
-            simbol.setContent(ERROR);
-            
-            getChildren().add(simbol);
-            simbols.put(status, simbol);
-            
-            heightProperty().addListener(listener -> {
-                simbol.scaleXProperty().setValue(getHeight()/simbol.maxHeight(Double.MAX_VALUE));
-            });
-            
-            widthProperty().addListener(listener -> {
-                simbol.scaleYProperty().setValue(getWidth()/simbol.maxWidth(Double.MAX_VALUE));
-            });
-        }
-        
-        simbols.get(PushButtonStatus.ENABLED).setContent(ENABLED);
-        simbols.get(PushButtonStatus.ENABLED).setFill(Color.BLUE);
-        simbols.get(PushButtonStatus.PRESSED).setContent(PRESSED);
-        simbols.get(PushButtonStatus.PRESSED).setFill(Color.GREEN);
-        simbols.get(PushButtonStatus.ERROR).setContent(ERROR);
-        simbols.get(PushButtonStatus.ERROR).setFill(Color.RED);
-        simbols.get(PushButtonStatus.DISABLED).setContent(DISABLED);
-        simbols.get(PushButtonStatus.DISABLED).setFill(Color.GREY);
+        getChildren().add(view);
     }
-    
+
     public void setValue(PushButtonStatus newStatus) {
-        for (PushButtonStatus status: PushButtonStatus.values()) {
-            simbols.get(status).setVisible(status == newStatus);
+        long start = System.nanoTime();
+        if (newStatus != status) {
+            status = newStatus;
+            if (size > 0) {
+                view.setImage(PushButtonSimbolCache.getInstance().get(status, size));
+            }
+        }
+        LatencyStage.RENDER.recordSince(start);
+    }
+
+    /**
+     *
+     * @return lo stato mostrato
+     */
+    public PushButtonStatus getValue() {
+        return status;
+    }
+
+    @Override
+    protected void layoutChildren() {
+        // Il simbolo è quadrato e centrato, l'immagine cambia solo se cambia il lato
+        int side = (int) Math.floor(Math.min(getWidth() - snappedLeftInset() - snappedRightInset(), getHeight() - snappedTopInset() - snappedBottomInset()));
+        if (side != size) {
+            size = side;
+            view.setImage(side > 0 ? PushButtonSimbolCache.getInstance().get(status, side) : null);
         }
+        layoutInArea(view, snappedLeftInset(), snappedTopInset(),
+                getWidth() - snappedLeftInset() - snappedRightInset(),
+                getHeight() - snappedTopInset() - snappedBottomInset(),
+                0, HPos.CENTER, VPos.CENTER);
+    }
+
+    @Override
+    protected double computePrefWidth(double height) {
+        return PushButtonSimbolCache.PATH_SIZE + snappedLeftInset() + snappedRightInset();
+    }
+
+    @Override
+    protected double computePrefHeight(double width) {
+        return PushButtonSimbolCache.PATH_SIZE + snappedTopInset() + snappedBottomInset();
     }
 }
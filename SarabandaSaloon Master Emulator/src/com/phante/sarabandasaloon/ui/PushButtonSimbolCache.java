@@ -0,0 +1,154 @@
+/*
+ * Copyright 2015 Elvis Del Tedesco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.phante.sarabandasaloon.ui;
+
+import com.phante.sarabandasaloon.entity.PushButtonStatus;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javafx.scene.SnapshotParameters;
+import javafx.scene.image.Image;
+import javafx.scene.paint.Color;
+import javafx.scene.shape.FillRule;
+import javafx.scene.shape.SVGPath;
+import javafx.scene.transform.Scale;
+
+/**
+ * Cache delle immagini dei simboli dei pulsanti. Ogni simbolo viene
+ * rasterizzato una sola volta per dimensione e l'immagine viene condivisa da
+ * tutti i pulsanti della stessa dimensione, per cui il cambio di stato di un
+ * pulsante non crea nodi e non ridisegna il tracciato SVG.
+ *
+ * Va usata solo dal thread della UI, che è l'unico su cui si può fare lo
+ * snapshot dei nodi.
+ *
+ * @author deltedes
+ */
+public class PushButtonSimbolCache {
+
+    // Lato dei tracciati dei simboli
+    static final double PATH_SIZE = 100;
+    // Dimensioni diverse mantenute al massimo, le meno usate vengono scartate
+    private static final int MAX_SIZES = 16;
+
+    private static final PushButtonStatus[] STATUSES = PushButtonStatus.values();
+
+    // Immagini per dimensione in pixel, indicizzate per stato
+    private final Map<Integer, Image[]> images = new LinkedHashMap<Integer, Image[]>(MAX_SIZES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Image[]> eldest) {
+            return size() > MAX_SIZES;
+        }
+    };
+
+    // Tracciato usato per rasterizzare tutti i simboli
+    private final SVGPath path = new SVGPath();
+    private final SnapshotParameters parameters = new SnapshotParameters();
+
+    private PushButtonSimbolCache() {
+        path.setFillRule(FillRule.NON_ZERO);
+        parameters.setFill(Color.TRANSPARENT);
+    }
+
+    /**
+     *
+     * @return la cache condivisa
+     */
+    public static PushButtonSimbolCache getInstance() {
+        return PushButtonSimbolCacheHolder.INSTANCE;
+    }
+
+    private static class PushButtonSimbolCacheHolder {
+        private static final PushButtonSimbolCache INSTANCE = new PushButtonSimbolCache();
+    }
+
+    /**
+     *
+     * @param status
+     * @param size lato dell'immagine in pixel
+     * @return l'immagine del simbolo, rasterizzata alla prima richiesta
+     */
+    public Image get(PushButtonStatus status, int size) {
+        Image[] bySize = images.get(size);
+        if (bySize == null) {
+            bySize = new Image[STATUSES.length];
+            images.put(size, bySize);
+        }
+        Image image = bySize[status.ordinal()];
+        if (image == null) {
+            image = rasterize(status, size);
+            bySize[status.ordinal()] = image;
+        }
+        return image;
+    }
+
+    /**
+     * Svuota la cache.
+     */
+    public void clear() {
+        images.clear();
+    }
+
+    /**
+     * Disegna il simbolo di uno stato su un'immagine della dimensione indicata.
+     *
+     * @param status
+     * @param size
+     * @return
+     */
+    private Image rasterize(PushButtonStatus status, int size) {
+        path.setContent(content(status));
+        path.setFill(color(status));
+        double scale = size / PATH_SIZE;
+        parameters.setTransform(new Scale(scale, scale));
+        return path.snapshot(parameters, null);
+    }
+
+    /**
+     *
+     * @param status
+     * @return il tracciato SVG del simbolo
+     */
+    static String content(PushButtonStatus status) {
+        switch (status) {
+            case PRESSED:
+                return PushButtonSimbol.PRESSED;
+            case ERROR:
+                return PushButtonSimbol.ERROR;
+            case DISABLED:
+                return PushButtonSimbol.DISABLED;
+            default:
+                return PushButtonSimbol.ENABLED;
+        }
+    }
+
+    /**
+     *
+     * @param status
+     * @return il colore del simbolo
+     */
+    static Color color(PushButtonStatus status) {
+        switch (status) {
+            case PRESSED:
+                return Color.GREEN;
+            case ERROR:
+                return Color.RED;
+            case DISABLED:
+                return Color.GREY;
+            default:
+                return Color.BLUE;
+        }
+    }
+}
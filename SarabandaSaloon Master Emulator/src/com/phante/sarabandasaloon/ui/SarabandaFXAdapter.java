@@ -0,0 +1,243 @@
+/*
+ * Copyright 2015 Elvis Del Tedesco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.phante.sarabandasaloon.ui;
+
+import com.phante.sarabandasaloon.entity.PushButton;
+import com.phante.sarabandasaloon.entity.PushButtonStatus;
+import com.phante.sarabandasaloon.metrics.LatencyStage;
+import com.phante.sarabandasaloon.network.SarabandaController;
+import com.phante.sarabandasaloon.network.SarabandaFrame;
+import com.phante.sarabandasaloon.network.SarabandaListener;
+import com.phante.sarabandasaloon.network.SarabandaMasterController;
+import java.util.concurrent.atomic.AtomicLong;
+import javafx.animation.AnimationTimer;
+import javafx.beans.property.ReadOnlyBooleanProperty;
+import javafx.beans.property.ReadOnlyBooleanWrapper;
+import javafx.beans.property.ReadOnlyIntegerProperty;
+import javafx.beans.property.ReadOnlyIntegerWrapper;
+import javafx.beans.property.ReadOnlyLongProperty;
+import javafx.beans.property.ReadOnlyLongWrapper;
+import javafx.beans.property.ReadOnlyStringProperty;
+import javafx.beans.property.ReadOnlyStringWrapper;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+
+/**
+ * Adattatore JavaFX del controller Sarabanda: riporta sul thread della UI gli
+ * eventi del controller esponendoli come property osservabili.
+ *
+ * Gli eventi non vengono inoltrati uno per uno con Platform.runLater: il
+ * thread di rete registra soltanto che lo stato è cambiato e un
+ * AnimationTimer applica l'ultimo stato al massimo una volta per pulse,
+ * scartando gli stati intermedi già superati. In questo modo la coda del
+ * thread della UI non cresce anche quando i pacchetti arrivano a raffica.
+ *
+ * @author deltedes
+ */
+public class SarabandaFXAdapter implements SarabandaListener {
+
+    // Controller adattato
+    private final SarabandaController controller;
+
+    // Imposta la modalità classica
+    private final ReadOnlyBooleanWrapper classicModeProperty = new ReadOnlyBooleanWrapper();
+    // Identifica il funzionamento su solo localhost senza usare il broadcast
+    private final ReadOnlyBooleanWrapper onlyLocalhostModeProperty = new ReadOnlyBooleanWrapper();
+    // Memorizza lo stato del server
+    private final ReadOnlyIntegerWrapper serverStatus = new ReadOnlyIntegerWrapper();
+    // Memorizza l'ultimo messaggio arrivato
+    private final ReadOnlyStringWrapper message = new ReadOnlyStringWrapper();
+    // Stato dei pulsanti
+    private final ObservableList<PushButton> buttons = FXCollections.observableArrayList();
+    // Aggiornamenti assorbiti perché superati prima del pulse successivo
+    private final ReadOnlyLongWrapper coalescedUpdates = new ReadOnlyLongWrapper();
+
+    // Versione dello stato, incrementata ad ogni evento del controller
+    private final AtomicLong version = new AtomicLong();
+    // Ultima versione applicata alla UI, scritta solo dal thread della UI
+    private volatile long appliedVersion;
+    // Ultimo messaggio ricevuto, copiato senza allocare
+    private final SarabandaFrame lastMessage = new SarabandaFrame();
+    private boolean messageChanged;
+    // Istante di ricezione dell'ultimo pacchetto e dell'ultimo già misurato
+    private volatile long lastReceivedNanos;
+    private long measuredNanos;
+
+    // Applica lo stato ad ogni pulse
+    private final AnimationTimer pulse = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            applyLatest();
+        }
+    };
+
+    /**
+     *
+     * @param controller
+     */
+    public SarabandaFXAdapter(SarabandaController controller) {
+        this.controller = controller;
+
+        // Registra il listener prima di leggere lo stato, gli eventi intermedi
+        // vengono applicati al primo pulse
+        controller.addListener(this);
+
+        // Allinea lo stato iniziale
+        for (int i = 0; i < controller.getButtonNumber(); i++) {
+            buttons.add(new PushButton(controller.getButtonBoard(), i));
+        }
+        classicModeProperty.setValue(controller.isClassicMode());
+        onlyLocalhostModeProperty.setValue(controller.isOnlyLocalhostMode());
+        serverStatus.setValue(controller.getServerStatus());
+
+        // Gli eventi non ancora applicati formano la coda della UI
+        controller.getMetrics().setUiQueueDepth(() -> version.get() - appliedVersion);
+
+        pulse.start();
+    }
+
+    /**
+     *
+     * @return l'adattatore del controller master
+     */
+    public static SarabandaFXAdapter getInstance() {
+        return SarabandaFXAdapterHolder.INSTANCE;
+    }
+
+    private static class SarabandaFXAdapterHolder {
+        private static final SarabandaFXAdapter INSTANCE = new SarabandaFXAdapter(SarabandaMasterController.getInstance());
+    }
+
+    @Override
+    public void serverStatusChanged(int status) {
+        version.incrementAndGet();
+    }
+
+    @Override
+    public void messageReceived(SarabandaFrame frame) {
+        // Il frame viene riutilizzato per cui ne copio il contenuto
+        synchronized (lastMessage) {
+            lastMessage.copyFrom(frame);
+            messageChanged = true;
+        }
+        lastReceivedNanos = frame.getReceivedNanos();
+        version.incrementAndGet();
+    }
+
+    @Override
+    public void buttonStatusChanged(int button, PushButtonStatus status) {
+        version.incrementAndGet();
+    }
+
+    @Override
+    public void modeChanged(boolean classicMode, boolean localhostOnly) {
+        version.incrementAndGet();
+    }
+
+    /**
+     * Applica alla UI l'ultimo stato del controller se è cambiato dal pulse
+     * precedente.
+     */
+    private void applyLatest() {
+        long current = version.get();
+        if (current == appliedVersion) {
+            return;
+        }
+        long events = current - appliedVersion;
+        appliedVersion = current;
+        if (events > 1) {
+            coalescedUpdates.set(coalescedUpdates.get() + events - 1);
+        }
+
+        // Le property notificano solo i valori effettivamente cambiati
+        for (PushButton button : buttons) {
+            button.refresh();
+        }
+        serverStatus.setValue(controller.getServerStatus());
+        classicModeProperty.setValue(controller.isClassicMode());
+        onlyLocalhostModeProperty.setValue(controller.isOnlyLocalhostMode());
+
+        synchronized (lastMessage) {
+            if (messageChanged) {
+                message.setValue(lastMessage.toString());
+                messageChanged = false;
+            }
+        }
+
+        // Tempo dalla ricezione dell'ultimo pacchetto alla sua comparsa a video
+        long received = lastReceivedNanos;
+        if (received != measuredNanos) {
+            measuredNanos = received;
+            LatencyStage.SCREEN.recordSince(received);
+        }
+    }
+
+    /**
+     *
+     * @return
+     */
+    public SarabandaController getController() {
+        return controller;
+    }
+
+    /**
+     *
+     * @return
+     */
+    public ReadOnlyIntegerProperty serverStatusProperty() {
+        return serverStatus.getReadOnlyProperty();
+    }
+
+    /**
+     *
+     * @return
+     */
+    public ReadOnlyStringProperty messageProperty() {
+        return message.getReadOnlyProperty();
+    }
+
+    /**
+     *
+     * @return
+     */
+    public ObservableList<PushButton> getPushButton() {
+        return buttons;
+    }
+
+    /**
+     *
+     * @return
+     */
+    public ReadOnlyBooleanProperty classicModeProperty() {
+        return classicModeProperty.getReadOnlyProperty();
+    }
+
+    /**
+     *
+     * @return il numero di aggiornamenti assorbiti da uno stato più recente
+     */
+    public ReadOnlyLongProperty coalescedUpdatesProperty() {
+        return coalescedUpdates.getReadOnlyProperty();
+    }
+
+    /**
+     *
+     * @return
+     */
+    public ReadOnlyBooleanProperty onlyLocalhostModeProperty() {
+        return onlyLocalhostModeProperty.getReadOnlyProperty();
+    }
+}
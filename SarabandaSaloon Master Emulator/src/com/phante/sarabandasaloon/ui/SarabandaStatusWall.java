@@ -0,0 +1,207 @@
+/*
+ * Copyright 2015 Elvis Del Tedesco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.phante.sarabandasaloon.ui;
+
+import com.phante.sarabandasaloon.entity.PushButtonBoard;
+import com.phante.sarabandasaloon.metrics.LatencyStage;
+import com.phante.sarabandasaloon.network.SarabandaController;
+import com.phante.sarabandasaloon.network.SarabandaSession;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import javafx.animation.AnimationTimer;
+import javafx.collections.FXCollections;
+import javafx.geometry.VPos;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.control.ContentDisplay;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.paint.Color;
+
+/**
+ * Parete di stato per seguire molte partite da una sola console. Ogni riga è
+ * un tabellone disegnato su un Canvas con le immagini di
+ * PushButtonSimbolCache.
+ *
+ * La lista è virtualizzata: le celle esistono solo per le righe visibili e
+ * vengono riciclate durante lo scorrimento. Non ci sono listener sui
+ * pulsanti: ad ogni pulse le celle visibili leggono le parole di
+ * PushButtonBoard, che contengono lo stato di tutto il tabellone, e
+ * ridisegnano solo i pulsanti cambiati dall'ultimo disegno.
+ *
+ * @author deltedes
+ */
+public class SarabandaStatusWall extends ListView<SarabandaController> {
+
+    // Lato dei simboli in pixel e spazio tra i simboli
+    static final int SYMBOL_SIZE = 24;
+    static final int GAP = 4;
+    // Simboli per riga di un tabellone
+    static final int COLUMNS = 16;
+    // Larghezza dell'etichetta della partita
+    static final int LABEL_WIDTH = 140;
+
+    // Celle create dalla lista, poche e riutilizzate
+    private final List<BoardCell> cells = new ArrayList<>();
+
+    // Ridisegna le celle visibili ad ogni pulse
+    private final AnimationTimer pulse = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            for (BoardCell cell : cells) {
+                cell.refresh();
+            }
+        }
+    };
+
+    /**
+     *
+     * @param controllers tabelloni da mostrare
+     */
+    public SarabandaStatusWall(Collection<? extends SarabandaController> controllers) {
+        super(FXCollections.observableArrayList(controllers));
+
+        // L'altezza fissa evita di misurare le celle durante lo scorrimento
+        int buttonNumber = 0;
+        for (SarabandaController controller : controllers) {
+            buttonNumber = Math.max(buttonNumber, controller.getButtonNumber());
+        }
+        setFixedCellSize(rows(buttonNumber) * (SYMBOL_SIZE + GAP) + GAP);
+        setCellFactory(list -> {
+            BoardCell cell = new BoardCell();
+            cells.add(cell);
+            return cell;
+        });
+
+        // Il disegno è attivo solo quando la parete è in una scena
+        sceneProperty().addListener((observable, oldScene, newScene) -> {
+            if (newScene != null) {
+                pulse.start();
+            } else {
+                pulse.stop();
+            }
+        });
+    }
+
+    /**
+     *
+     * @param buttonNumber
+     * @return le righe di simboli di un tabellone
+     */
+    static int rows(int buttonNumber) {
+        return Math.max(1, (buttonNumber + COLUMNS - 1) / COLUMNS);
+    }
+
+    /**
+     *
+     * @param controller
+     * @return l'etichetta di un tabellone
+     */
+    static String label(SarabandaController controller) {
+        if (controller instanceof SarabandaSession) {
+            SarabandaSession session = (SarabandaSession) controller;
+            return "Partita " + session.getSessionId() + " :" + session.getListenPort();
+        }
+        return "Master";
+    }
+
+    /**
+     * Cella che disegna un tabellone su un Canvas.
+     */
+    private static class BoardCell extends ListCell<SarabandaController> {
+
+        private final Canvas canvas = new Canvas();
+        // Parole disegnate, confrontate ad ogni pulse con quelle del tabellone
+        private final long[] drawn = new long[PushButtonBoard.MAX_WORDS];
+        // Controller disegnato, null se la cella è vuota
+        private SarabandaController controller;
+
+        BoardCell() {
+            setContentDisplay(ContentDisplay.GRAPHIC_ONLY);
+        }
+
+        @Override
+        protected void updateItem(SarabandaController item, boolean empty) {
+            super.updateItem(item, empty);
+            controller = empty ? null : item;
+            if (controller == null) {
+                setGraphic(null);
+                return;
+            }
+
+            // Cella riciclata per un altro tabellone: lo ridisegna tutto
+            int buttonNumber = controller.getButtonNumber();
+            canvas.setWidth(LABEL_WIDTH + Math.min(buttonNumber, COLUMNS) * (SYMBOL_SIZE + GAP));
+            canvas.setHeight(rows(buttonNumber) * (SYMBOL_SIZE + GAP));
+            GraphicsContext graphics = canvas.getGraphicsContext2D();
+            graphics.clearRect(0, 0, canvas.getWidth(), canvas.getHeight());
+            graphics.setFill(Color.BLACK);
+            graphics.setTextBaseline(VPos.CENTER);
+            graphics.fillText(label(controller), 0, (SYMBOL_SIZE + GAP) / 2.0);
+            PushButtonBoard board = controller.getButtonBoard();
+            for (int word = 0; word < board.wordCount(); word++) {
+                drawn[word] = board.getWord(word);
+                draw(board, word, -1L);
+            }
+            setGraphic(canvas);
+        }
+
+        /**
+         * Ridisegna i pulsanti cambiati dall'ultimo disegno.
+         */
+        void refresh() {
+            if (controller == null) {
+                return;
+            }
+            PushButtonBoard board = controller.getButtonBoard();
+            for (int word = 0; word < board.wordCount(); word++) {
+                long current = board.getWord(word);
+                long changed = current ^ drawn[word];
+                if (changed != 0) {
+                    long start = System.nanoTime();
+                    drawn[word] = current;
+                    draw(board, word, changed);
+                    LatencyStage.RENDER.recordSince(start);
+                }
+            }
+        }
+
+        /**
+         * Disegna i pulsanti di una parola con almeno un bit cambiato.
+         *
+         * @param board
+         * @param word
+         * @param changed bit cambiati, -1 per disegnare tutti i pulsanti
+         */
+        private void draw(PushButtonBoard board, int word, long changed) {
+            GraphicsContext graphics = canvas.getGraphicsContext2D();
+            PushButtonSimbolCache cache = PushButtonSimbolCache.getInstance();
+            int first = word * PushButtonBoard.BUTTONS_PER_WORD;
+            int last = Math.min(board.size(), first + PushButtonBoard.BUTTONS_PER_WORD);
+            for (int button = first; button < last; button++) {
+                int offset = (button - first) * PushButtonBoard.BITS_PER_BUTTON;
+                if (((changed >>> offset) & 0x3L) == 0) {
+                    continue;
+                }
+                double x = LABEL_WIDTH + (button % COLUMNS) * (SYMBOL_SIZE + GAP);
+                double y = (button / COLUMNS) * (SYMBOL_SIZE + GAP);
+                graphics.clearRect(x, y, SYMBOL_SIZE, SYMBOL_SIZE);
+                graphics.drawImage(cache.get(PushButtonBoard.status(drawn[word], button - first), SYMBOL_SIZE), x, y);
+            }
+        }
+    }
+}
@@ -17,8 +17,8 @@ package sarabandasaloon.master.emulator;
 
 import com.phante.sarabandasaloon.entity.PushButton;
 import com.phante.sarabandasaloon.entity.PushButtonStatus;
-import com.phante.sarabandasaloon.network.SarabandaMasterController;
 import com.phante.sarabandasaloon.ui.PushButtonSimbol;
+import com.phante.sarabandasaloon.ui.SarabandaFXAdapter;
 import java.net.URL;
 import java.util.ResourceBundle;
 import java.util.logging.Level;
@@ -26,9 +26,11 @@ import java.util.logging.Logger;
 import javafx.beans.value.ObservableValue;
 import javafx.fxml.FXML;
 import javafx.fxml.Initializable;
+import javafx.scene.control.Button;
 import javafx.scene.control.CheckMenuItem;
 import javafx.scene.control.Label;
 import javafx.scene.layout.GridPane;
+import javafx.scene.text.Font;
 
 /**
  *
@@ -37,44 +39,64 @@ import javafx.scene.layout.GridPane;
 public class RootController implements Initializable {
 
     @FXML
-    private GridPane panel = new GridPane();
+    GridPane panel = new GridPane();
 
     @FXML
-    private Label RXLabel = new Label();
+    Label RXLabel = new Label();
     
     @FXML
     private CheckMenuItem modeSelection = new CheckMenuItem();
     @FXML
     private CheckMenuItem networkSelection = new CheckMenuItem();
 
+    // Numero massimo di pulsanti per riga
+    private static final int COLUMNS = 8;
+
     @Override
     public void initialize(URL url, ResourceBundle rb) {
         double maxSize = 100;
 
-        // Inizializza i simboli per i singoli pulsanti
+        // Inizializza i simboli e i pulsanti, su più righe se non stanno in una
         int i = 0;
-        for (PushButton button : SarabandaMasterController.getInstance().getPushButton()) {
+        for (PushButton button : SarabandaFXAdapter.getInstance().getPushButton()) {
+            int column = i % COLUMNS;
+            int row = (i / COLUMNS) * 2;
+            int buttonId = ++i;
+
             // Crea il simbolo
             PushButtonSimbol simbol = new PushButtonSimbol();
 
             // Lo aggiunge al pannello
-            panel.add(simbol, i++, 0);
+            panel.add(simbol, column, row);
 
             // Imposta le dimensioni
             simbol.setMaxSize(maxSize, maxSize);
             simbol.setMinSize(maxSize, maxSize);
             simbol.setPrefSize(maxSize, maxSize);
 
+            // Crea il pulsante per simulare la pressione dal master
+            Button push = new Button(Integer.toString(buttonId));
+            push.setMnemonicParsing(false);
+            push.setFont(new Font(40));
+            push.setMinSize(maxSize, maxSize);
+            push.setPrefSize(maxSize, maxSize);
+            push.setMaxSize(maxSize, maxSize);
+            push.setOnAction(event -> buttonManagement(buttonId));
+            panel.add(push, column, row + 1);
+
+            // Mostra lo stato corrente
+            simbol.setValue(button.getStatus());
+
             // Aggiunge il listener sullo stato dei pulsanti
-            button.valueProperty().addListener((ObservableValue<? extends String> observable, String oldValue, String newValue) -> {
+            button.statusProperty().addListener((ObservableValue<? extends PushButtonStatus> observable, PushButtonStatus oldValue, PushButtonStatus newValue) -> {
                 Logger.getLogger(RootController.class.getName()).log(Level.INFO, "Un pulsante ha cambiato stato da {0} a {1}.", new Object[]{oldValue, newValue});
 
                 // Al cambio dello stato del pulsante cambio il simbolo come feedback visivo di cosa succede sul palco
-                simbol.setValue(PushButtonStatus.parse(newValue));
+                simbol.setValue(newValue);
             });
         }
         
-        SarabandaMasterController sc = SarabandaMasterController.getInstance();
+        SarabandaFXAdapter sc = SarabandaFXAdapter.getInstance();
         RXLabel.textProperty().bind(sc.messageProperty());
         
         modeSelection.selectedProperty().bind(sc.classicModeProperty());
@@ -86,43 +108,12 @@ public class RootController implements Initializable {
      * @param buttonId 
      */
     private void buttonManagement(int buttonId) {
-        PushButton button = SarabandaMasterController.getInstance().getPushButton().get(buttonId - 1);
-        
-        boolean alreadyPressed = false;
-        for (PushButton pb: SarabandaMasterController.getInstance().getPushButton()) {
-            alreadyPressed = alreadyPressed || (pb.getStatus() == PushButtonStatus.PRESSED);
-        }
-        
-        if (!alreadyPressed && button.getStatus() == PushButtonStatus.ENABLED) {
-            // Pressione valida, invio il segnale alla rete
+        // La verifica della pressione valida è a carico del controller
+        if (SarabandaFXAdapter.getInstance().getController().pressButton(buttonId - 1)) {
             Logger.getLogger(RootController.class.getName()).log(Level.INFO, "Premuto il pulsante {0}", buttonId);
-            
-            button.setStatus(PushButtonStatus.PRESSED);
-            //SarabandaMasterController.getInstance().sendPushButtonPressed(buttonId - 1);
-            SarabandaMasterController.getInstance().sendPushButtonStatus();
         }
     }
 
-    @FXML
-    public void pushButton1() {
-        buttonManagement(1);
-    }
-
-    @FXML
-    public void pushButton2() {
-        buttonManagement(2);
-    }
-
-    @FXML
-    public void pushButton3() {
-        buttonManagement(3);
-    }
-
-    @FXML
-    public void pushButton4() {
-        buttonManagement(4);
-    }
-    
     @FXML 
     public void handleQuit() {
         //Esci??
@@ -130,11 +121,11 @@ public class RootController implements Initializable {
     
     @FXML
     public void switchClassicMode() {
-        SarabandaMasterController.getInstance().setClassicMode(!modeSelection.isSelected());
+        SarabandaFXAdapter.getInstance().getController().setClassicMode(!modeSelection.isSelected());
     }
     
     @FXML
     public void switchNetworkMode() {
-        SarabandaMasterController.getInstance().setLocalhostOnly(!networkSelection.isSelected());
+        SarabandaFXAdapter.getInstance().getController().setLocalhostOnly(!networkSelection.isSelected());
     }
 }
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2015 Elvis Del Tedesco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sarabandasaloon.master.emulator;
+
+import com.phante.sarabandasaloon.ui.SarabandaFXAdapter;
+import javafx.beans.property.ReadOnlyBooleanProperty;
+import javafx.geometry.Insets;
+import javafx.geometry.Pos;
+import javafx.scene.Parent;
+import javafx.scene.control.CheckMenuItem;
+import javafx.scene.control.Label;
+import javafx.scene.control.Menu;
+import javafx.scene.control.MenuBar;
+import javafx.scene.control.MenuItem;
+import javafx.scene.input.KeyCode;
+import javafx.scene.input.KeyCodeCombination;
+import javafx.scene.input.KeyCombination;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.VBox;
+import javafx.scene.text.Font;
+import javafx.scene.text.FontWeight;
+import javafx.scene.text.TextAlignment;
+
+/**
+ * Costruzione da codice della stessa vista di Root.fxml, usata all'avvio per
+ * non caricare e interpretare il file FXML. Root.fxml resta la vista di
+ * riferimento per lo sviluppo e va tenuta allineata con questa classe.
+ *
+ * La barra dei menu non serve per il primo fotogramma e viene creata solo
+ * con installMenus, da chiamare dopo aver mostrato la finestra.
+ *
+ * @author elvisdeltedesco
+ */
+class RootView {
+
+    private final RootController controller = new RootController();
+    private final VBox root = new VBox();
+
+    /**
+     * Crea il tabellone e la riga dell'ultimo messaggio ricevuto.
+     */
+    RootView() {
+        VBox.setMargin(controller.panel, new Insets(5.0));
+        controller.panel.setAlignment(Pos.CENTER);
+
+        Label rx = new Label("RX");
+        rx.setAlignment(Pos.CENTER);
+        rx.setTextAlignment(TextAlignment.CENTER);
+        rx.setMaxHeight(Double.MAX_VALUE);
+        rx.setMinWidth(100.0);
+        rx.setPrefWidth(100.0);
+        rx.setFont(Font.font("System", FontWeight.BOLD, 13.0));
+
+        controller.RXLabel.setText("Label");
+        controller.RXLabel.setMaxSize(Double.MAX_VALUE, Double.MAX_VALUE);
+        HBox.setHgrow(controller.RXLabel, Priority.ALWAYS);
+
+        HBox status = new HBox(rx, controller.RXLabel);
+        status.setAlignment(Pos.CENTER_LEFT);
+        status.setMinHeight(50.0);
+        status.setPrefHeight(50.0);
+        VBox.setMargin(status, new Insets(5.0));
+
+        root.getChildren().addAll(controller.panel, status);
+        controller.initialize(null, null);
+    }
+
+    /**
+     *
+     * @return la radice della vista
+     */
+    Parent getRoot() {
+        return root;
+    }
+
+    /**
+     * Crea la barra dei menu e la aggiunge in cima alla vista.
+     */
+    void installMenus() {
+        MenuItem quit = new MenuItem("Chiudi");
+        quit.setMnemonicParsing(false);
+        quit.setAccelerator(new KeyCodeCombination(KeyCode.F4, KeyCombination.ALT_DOWN));
+        Menu file = new Menu("File", null, quit);
+        file.setMnemonicParsing(false);
+
+        SarabandaFXAdapter adapter = SarabandaFXAdapter.getInstance();
+        CheckMenuItem network = checkItem("Limita a localhost", adapter.onlyLocalhostModeProperty());
+        network.setOnAction(event -> controller.switchNetworkMode());
+        CheckMenuItem classic = checkItem("Porte classiche", adapter.classicModeProperty());
+        classic.setOnAction(event -> controller.switchClassicMode());
+        Menu settings = new Menu("Impostazioni", null, network, classic);
+        settings.setMnemonicParsing(false);
+
+        root.getChildren().add(0, new MenuBar(file, settings));
+    }
+
+    /**
+     * Crea una voce di menu che segue una modalità del controller. La voce
+     * non è legata alla property perché il clic ne cambia lo stato.
+     *
+     * @param text
+     * @param mode
+     * @return
+     */
+    private static CheckMenuItem checkItem(String text, ReadOnlyBooleanProperty mode) {
+        CheckMenuItem item = new CheckMenuItem(text);
+        item.setMnemonicParsing(false);
+        item.setSelected(mode.get());
+        mode.addListener((observable, oldValue, newValue) -> item.setSelected(newValue));
+        return item;
+    }
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright 2015 Elvis Del Tedesco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sarabandasaloon.master.emulator;
+
+import com.phante.sarabandasaloon.entity.PushButtonStatus;
+import com.phante.sarabandasaloon.metrics.LatencyStage;
+import com.phante.sarabandasaloon.metrics.PrometheusExporter;
+import com.phante.sarabandasaloon.metrics.StartupTimer;
+import com.phante.sarabandasaloon.network.SarabandaController;
+import com.phante.sarabandasaloon.network.SarabandaEventLog;
+import com.phante.sarabandasaloon.network.SarabandaGateway;
+import com.phante.sarabandasaloon.network.SarabandaJournal;
+import com.phante.sarabandasaloon.network.SarabandaListener;
+import com.phante.sarabandasaloon.network.SarabandaMasterController;
+import com.phante.sarabandasaloon.network.SarabandaReplay;
+import com.phante.sarabandasaloon.network.SarabandaSession;
+import com.phante.sarabandasaloon.network.SarabandaSessionManager;
+import com.phante.sarabandasaloon.network.SarabandaStateLog;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Avvio del master senza interfaccia grafica, per le macchine senza display.
+ * Non carica nessuna classe JavaFX.
+ *
+ * Opzioni: --classic per le porte classiche, --broadcast per inviare in
+ * broadcast invece che solo su localhost, --buttons=N per il numero dei
+ * pulsanti del tabellone, --sessions=N per ospitare N partite indipendenti
+ * in ascolto sulle porte 8888, 8890, ... con invio sulla porta successiva,
+ * --journal=DIR per registrare tutti i pacchetti in DIR, --replay=DIR per
+ * riprodurre un giornale con i tempi originali (--replay-fast per la massima
+ * velocità) e terminare, --metrics=PORT per esporre le metriche in formato
+ * Prometheus su http://localhost:PORT/metrics, --arbitration=US per
+ * arbitrare le pressioni concorrenti su una finestra di US microsecondi,
+ * --sequence per aggiungere il numero di sequenza ai pacchetti inviati,
+ * --reliable per ritrasmettere RESET, FULLRESET ed ERROR fino alla conferma,
+ * --multicast[=GROUP[@IFACE]] per usare un gruppo multicast al posto del
+ * broadcast, --listen=P1,P2,... per ascoltare anche sulle porte indicate,
+ * --state=DIR per registrare la storia dei pulsanti in DIR e ripartire
+ * dall'ultimo stato registrato, --gateway=PORT[,WSPORT] per inoltrare lo
+ * stato dei pulsanti ai client TCP sulla porta PORT e ai client WebSocket
+ * sulla porta WSPORT (PORT+1 se omessa, 0 per non aprirla).
+ *
+ * @author elvisdeltedesco
+ */
+public class SarabandaSaloonMasterDaemon {
+
+    // Opzione per il numero dei pulsanti
+    static final String BUTTONS_OPTION = "--buttons=";
+    // Opzione per il numero delle partite
+    static final String SESSIONS_OPTION = "--sessions=";
+    // Opzione per la cartella del giornale dei pacchetti
+    static final String JOURNAL_OPTION = "--journal=";
+    // Opzione per la riproduzione di un giornale
+    static final String REPLAY_OPTION = "--replay=";
+    // Opzione per la porta HTTP delle metriche
+    static final String METRICS_OPTION = "--metrics=";
+    // Opzione per la finestra di arbitraggio delle pressioni
+    static final String ARBITRATION_OPTION = "--arbitration=";
+    // Opzione per il numero di sequenza sui pacchetti inviati
+    static final String SEQUENCE_OPTION = "--sequence";
+    // Opzione per la consegna con conferma dei comandi critici
+    static final String RELIABLE_OPTION = "--reliable";
+    // Opzione per la modalità multicast
+    static final String MULTICAST_OPTION = "--multicast";
+    // Opzione per le porte di ascolto aggiuntive
+    static final String LISTEN_OPTION = "--listen=";
+    // Opzione per la cartella della storia dei pulsanti
+    static final String STATE_OPTION = "--state=";
+    // Opzione per le porte del gateway TCP e WebSocket
+    static final String GATEWAY_OPTION = "--gateway=";
+    // Proprietà con l'intervallo in secondi del riepilogo delle latenze
+    static final String LATENCY_REPORT_PROPERTY = "sarabanda.latency.report";
+    // Numero dei worker per le partite multiple
+    private static final int SESSION_WORKERS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+
+    // Endpoint delle metriche, null se non richiesto
+    private static PrometheusExporter metricsExporter;
+    // Gateway dello stato dei pulsanti, null se non richiesto
+    private static SarabandaGateway gateway;
+
+    /**
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) throws InterruptedException, IOException {
+        StartupTimer.mark("main");
+        // Il numero dei pulsanti e le opzioni del protocollo vanno impostati
+        // prima di creare il controller
+        int sessionNumber = 0;
+        SarabandaJournal journal = null;
+        Path statePath = null;
+        Path replay = null;
+        boolean replayFast = false;
+        List<String> modes = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith(BUTTONS_OPTION)) {
+                System.setProperty(SarabandaMasterController.BUTTON_NUMBER_PROPERTY, arg.substring(BUTTONS_OPTION.length()));
+            } else if (arg.startsWith(ARBITRATION_OPTION)) {
+                System.setProperty(SarabandaController.ARBITRATION_WINDOW_PROPERTY, arg.substring(ARBITRATION_OPTION.length()));
+            } else if (arg.equals(SEQUENCE_OPTION)) {
+                System.setProperty(SarabandaController.SEQUENCE_PROPERTY, "true");
+            } else if (arg.equals(RELIABLE_OPTION)) {
+                System.setProperty(SarabandaController.RELIABLE_PROPERTY, "true");
+            } else if (arg.startsWith(SESSIONS_OPTION)) {
+                sessionNumber = Integer.parseInt(arg.substring(SESSIONS_OPTION.length()));
+            } else if (arg.startsWith(JOURNAL_OPTION)) {
+                journal = SarabandaJournal.open(Paths.get(arg.substring(JOURNAL_OPTION.length())));
+            } else if (arg.startsWith(STATE_OPTION)) {
+                statePath = Paths.get(arg.substring(STATE_OPTION.length()));
+            } else if (arg.startsWith(REPLAY_OPTION)) {
+                replay = Paths.get(arg.substring(REPLAY_OPTION.length()));
+            } else if (arg.startsWith(METRICS_OPTION)) {
+                metricsExporter = new PrometheusExporter(Integer.parseInt(arg.substring(METRICS_OPTION.length())));
+            } else if (arg.equals("--replay-fast")) {
+                replayFast = true;
+            } else {
+                modes.add(arg);
+            }
+        }
+
+        if (sessionNumber > 0) {
+            runSessions(sessionNumber, journal);
+            return;
+        }
+
+        SarabandaController controller = SarabandaMasterController.getInstance();
+        controller.setJournal(journal);
+        StartupTimer.mark("controller");
+
+        for (String arg : modes) {
+            switch (arg) {
+                case "--classic":
+                    controller.setClassicMode(true);
+                    break;
+                case "--broadcast":
+                    controller.setLocalhostOnly(false);
+                    break;
+                default:
+                    if (arg.startsWith(LISTEN_OPTION)) {
+                        for (String port : arg.substring(LISTEN_OPTION.length()).split(",")) {
+                            controller.addListenPort(Integer.parseInt(port.trim()));
+                        }
+                    } else if (arg.startsWith(GATEWAY_OPTION)) {
+                        gateway = openGateway(controller, arg);
+                    } else if (!applyMulticast(controller, arg)) {
+                        Logger.getLogger(SarabandaSaloonMasterDaemon.class.getName()).log(Level.WARNING, "Opzione {0} sconosciuta", arg);
+                    }
+                    break;
+            }
+        }
+
+        // Riporta sul log i cambi di stato e i tempi di avvio al primo avvio
+        // del server
+        controller.addListener(new SarabandaListener() {
+            private boolean started;
+
+            @Override
+            public void serverStatusChanged(int status) {
+                Logger.getLogger(SarabandaSaloonMasterDaemon.class.getName()).log(Level.INFO, "Stato del server {0}", status);
+                if (status == SarabandaController.SERVER_STARTED && !started) {
+                    started = true;
+                    StartupTimer.mark("udp");
+                    Logger.getLogger(SarabandaSaloonMasterDaemon.class.getName()).log(Level.INFO, "Tempi di avvio:{0}{1}", new Object[]{System.lineSeparator(), StartupTimer.report()});
+                }
+            }
+
+            @Override
+            public void buttonStatusChanged(int button, PushButtonStatus status) {
+                Logger.getLogger(SarabandaSaloonMasterDaemon.class.getName()).log(Level.INFO, "Il pulsante {0} passa allo stato {1}", new Object[]{button + 1, status});
+            }
+        });
+
+        // Riparte dall'ultimo stato registrato
+        SarabandaStateLog stateLog = (statePath != null) ? SarabandaStateLog.open(statePath) : null;
+        controller.setStateLog(stateLog);
+        if (gateway != null) {
+            gateway.start();
+        }
+
+        // Riproduce il giornale senza avviare il server
+        if (replay != null) {
+            new SarabandaReplay(controller).replay(replay, !replayFast);
+            closeGateway();
+            controller.close();
+            closeStateLog(stateLog);
+            closeJournal(journal);
+            closeMetrics();
+            SarabandaEventLog.getInstance().close();
+            return;
+        }
+
+        // Alla chiusura del processo spegne il server, rilascia il canale di
+        // invio e scrive gli eventi rimasti nel log e nel giornale
+        SarabandaJournal opened = journal;
+        CountDownLatch shutdown = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            closeGateway();
+            controller.close();
+            printLatencies();
+            closeStateLog(stateLog);
+            closeJournal(opened);
+            closeMetrics();
+            SarabandaEventLog.getInstance().close();
+            shutdown.countDown();
+        }, "sarabanda-shutdown"));
+
+        startLatencyReport();
+        controller.startServer();
+        shutdown.await();
+    }
+
+    /**
+     * Avvia più partite indipendenti servite da un unico thread di I/O.
+     *
+     * @param sessionNumber
+     * @param journal giornale dei pacchetti, null se non attivo
+     */
+    private static void runSessions(int sessionNumber, SarabandaJournal journal) throws IOException, InterruptedException {
+        SarabandaSessionManager manager = createSessions(sessionNumber, journal);
+
+        CountDownLatch shutdown = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            manager.close();
+            printLatencies();
+            closeJournal(journal);
+            closeMetrics();
+            SarabandaEventLog.getInstance().close();
+            shutdown.countDown();
+        }, "sarabanda-shutdown"));
+
+        startLatencyReport();
+        manager.start();
+        Logger.getLogger(SarabandaSaloonMasterDaemon.class.getName()).log(Level.INFO, "Avviate {0} partite con {1} worker", new Object[]{sessionNumber, SESSION_WORKERS});
+        shutdown.await();
+    }
+
+    /**
+     * Crea le partite in ascolto sulle porte 8888, 8890, ... con invio sulla
+     * porta successiva, senza avviare il gestore.
+     *
+     * @param sessionNumber
+     * @param journal giornale dei pacchetti, null se non attivo
+     * @return il gestore delle partite
+     * @throws IOException
+     */
+    static SarabandaSessionManager createSessions(int sessionNumber, SarabandaJournal journal) throws IOException {
+        int buttonNumber = Integer.getInteger(SarabandaMasterController.BUTTON_NUMBER_PROPERTY, SarabandaController.DEFAULT_BUTTON_NUMBER);
+
+        SarabandaSessionManager manager = new SarabandaSessionManager(SESSION_WORKERS);
+        manager.setJournal(journal);
+        for (int i = 0; i < sessionNumber; i++) {
+            int listenPort = SarabandaController.UDP_MASTER_PORT + 2 * i;
+            SarabandaSession session = manager.createSession(listenPort, buttonNumber);
+            session.setSendAddress(InetAddress.getLoopbackAddress(), listenPort + 1);
+        }
+        return manager;
+    }
+
+    /**
+     * Riporta periodicamente sul log le latenze delle fasi del percorso dei
+     * pacchetti, ogni sarabanda.latency.report secondi (0 per disattivare).
+     */
+    private static void startLatencyReport() {
+        long period = Long.getLong(LATENCY_REPORT_PROPERTY, 60);
+        if (period <= 0) {
+            return;
+        }
+        Thread reporter = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(period * 1000);
+                    Logger.getLogger(SarabandaSaloonMasterDaemon.class.getName()).log(Level.INFO, "Latenze:{0}{1}", new Object[]{System.lineSeparator(), LatencyStage.report()});
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }, "sarabanda-latency-report");
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+
+    /**
+     * Scrive le latenze alla chiusura del processo. Non usa il logger perché
+     * java.util.logging chiude i propri handler con un suo shutdown hook.
+     */
+    private static void printLatencies() {
+        System.err.print("Latenze:" + System.lineSeparator() + LatencyStage.report());
+    }
+
+    /**
+     * Applica l'opzione --multicast[=GROUP[@IFACE]].
+     *
+     * @param controller
+     * @param arg
+     * @return false se l'argomento non è l'opzione multicast
+     * @throws IOException
+     */
+    static boolean applyMulticast(SarabandaController controller, String arg) throws IOException {
+        String value;
+        if (arg.equals(MULTICAST_OPTION)) {
+            value = "";
+        } else if (arg.startsWith(MULTICAST_OPTION + "=")) {
+            value = arg.substring(MULTICAST_OPTION.length() + 1);
+        } else {
+            return false;
+        }
+        int at = value.indexOf('@');
+        String group = (at >= 0) ? value.substring(0, at) : value;
+        String networkInterface = (at >= 0) ? value.substring(at + 1) : null;
+        controller.setMulticast(InetAddress.getByName(group.isEmpty() ? SarabandaController.DEFAULT_MULTICAST_GROUP : group),
+                SarabandaController.findMulticastInterface(networkInterface));
+        return true;
+    }
+
+    /**
+     * Apre il gateway indicato dall'opzione --gateway=PORT[,WSPORT] senza
+     * avviarlo.
+     *
+     * @param controller
+     * @param arg
+     * @return il gateway
+     * @throws IOException
+     */
+    static SarabandaGateway openGateway(SarabandaController controller, String arg) throws IOException {
+        String[] ports = arg.substring(GATEWAY_OPTION.length()).split(",");
+        int tcpPort = Integer.parseInt(ports[0].trim());
+        int webSocketPort = (ports.length > 1) ? Integer.parseInt(ports[1].trim()) : tcpPort + 1;
+        return new SarabandaGateway(controller, tcpPort, webSocketPort);
+    }
+
+    /**
+     * Ferma il gateway se è attivo.
+     */
+    private static void closeGateway() {
+        if (gateway != null) {
+            gateway.close();
+        }
+    }
+
+    /**
+     * Ferma l'endpoint delle metriche se è attivo.
+     */
+    private static void closeMetrics() {
+        if (metricsExporter != null) {
+            metricsExporter.close();
+        }
+    }
+
+    /**
+     * Chiude la storia dei pulsanti se è attiva.
+     *
+     * @param stateLog
+     */
+    private static void closeStateLog(SarabandaStateLog stateLog) {
+        if (stateLog != null) {
+            stateLog.close();
+        }
+    }
+
+    /**
+     * Chiude il giornale se è attivo.
+     *
+     * @param journal
+     */
+    private static void closeJournal(SarabandaJournal journal) {
+        if (journal != null) {
+            journal.close();
+        }
+    }
+}
@@ -15,8 +15,30 @@
  */
 package sarabandasaloon.master.emulator;
 
+import com.phante.sarabandasaloon.metrics.LatencyStage;
+import com.phante.sarabandasaloon.metrics.PrometheusExporter;
+import com.phante.sarabandasaloon.metrics.StartupTimer;
+import com.phante.sarabandasaloon.network.SarabandaController;
+import com.phante.sarabandasaloon.network.SarabandaEventLog;
+import com.phante.sarabandasaloon.network.SarabandaGateway;
+import com.phante.sarabandasaloon.network.SarabandaListener;
 import com.phante.sarabandasaloon.network.SarabandaMasterController;
+import com.phante.sarabandasaloon.network.SarabandaSession;
+import com.phante.sarabandasaloon.network.SarabandaSessionManager;
+import com.phante.sarabandasaloon.network.SarabandaStateLog;
+import com.phante.sarabandasaloon.ui.SarabandaFXAdapter;
+import com.phante.sarabandasaloon.ui.SarabandaStatusWall;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
@@ -27,23 +49,179 @@ import javafx.stage.Stage;
  * @author elvisdeltedesco
  */
 public class SarabandaSaloonMasterEmulator extends Application {
+
+    // Opzione per caricare la vista da Root.fxml invece di costruirla da codice
+    static final String FXML_OPTION = "--fxml";
+    // Proprietà per chiudere l'applicazione appena completato l'avvio, usata
+    // per raccogliere le classi dell'archivio CDS
+    static final String STARTUP_EXIT_PROPERTY = "sarabanda.startup.exit";
+
+    // Porta HTTP delle metriche, 0 se non richiesta
+    private static int metricsPort;
+    // Endpoint delle metriche
+    private PrometheusExporter metricsExporter;
+    // Numero delle partite mostrate sulla parete di stato, 0 per il solo master
+    private static int sessionNumber;
+    // Gestore delle partite, null se si usa il solo master
+    private SarabandaSessionManager sessionManager;
+    // Vista da caricare da Root.fxml
+    private static boolean fxml;
+    // Cartella della storia dei pulsanti, null se non attiva
+    private static Path statePath;
+    private SarabandaStateLog stateLog;
+    // Gateway dello stato dei pulsanti, null se non richiesto
+    private SarabandaGateway gateway;
+    // Attese dell'avvio ancora aperte
+    private final AtomicInteger startupPending = new AtomicInteger(2);
     
     @Override
     public void start(Stage stage) throws Exception {
-        Parent root = FXMLLoader.load(getClass().getResource("Root.fxml"));
-        
-        Scene scene = new Scene(root);
-        
-        SarabandaMasterController.getInstance().startServer();
-        
-        stage.setScene(scene);
+        StartupTimer.mark("toolkit");
+        if (sessionNumber > 0) {
+            startWall(stage);
+            return;
+        }
+
+        // Il server parte prima della vista: i pacchetti ricevuti nel
+        // frattempo sono già nello stato che la vista legge alla creazione
+        SarabandaController controller = SarabandaFXAdapter.getInstance().getController();
+        StartupTimer.mark("controller");
+        controller.addListener(new SarabandaListener() {
+            @Override
+            public void serverStatusChanged(int status) {
+                if (status == SarabandaController.SERVER_STARTED && startupPending.get() > 0) {
+                    StartupTimer.mark("udp");
+                    startupPhaseDone();
+                }
+            }
+        });
+        for (String arg : getParameters().getRaw()) {
+            if (arg.startsWith(SarabandaSaloonMasterDaemon.GATEWAY_OPTION)) {
+                gateway = SarabandaSaloonMasterDaemon.openGateway(controller, arg);
+            } else {
+                SarabandaSaloonMasterDaemon.applyMulticast(controller, arg);
+            }
+        }
+        if (statePath != null) {
+            stateLog = SarabandaStateLog.open(statePath);
+            controller.setStateLog(stateLog);
+        }
+        if (gateway != null) {
+            gateway.start();
+        }
+        controller.startServer();
+        StartupTimer.mark("server");
+        if (metricsPort > 0) {
+            metricsExporter = new PrometheusExporter(metricsPort);
+        }
+
+        if (fxml) {
+            Parent root = FXMLLoader.load(getClass().getResource("Root.fxml"));
+            StartupTimer.mark("view");
+            stage.setScene(new Scene(root));
+            stage.show();
+            StartupTimer.mark("shown");
+            startupPhaseDone();
+            return;
+        }
+
+        // Vista costruita da codice, i menu vengono creati dopo il primo fotogramma
+        RootView view = new RootView();
+        StartupTimer.mark("view");
+        stage.setScene(new Scene(view.getRoot()));
+        stage.show();
+        StartupTimer.mark("shown");
+        Platform.runLater(() -> {
+            view.installMenus();
+            StartupTimer.mark("menus");
+            startupPhaseDone();
+        });
+    }
+
+    /**
+     * Chiude una delle due attese dell'avvio, la vista completa e il server
+     * in ascolto, e alla seconda scrive il riepilogo dei tempi.
+     */
+    private void startupPhaseDone() {
+        if (startupPending.decrementAndGet() != 0) {
+            return;
+        }
+        Logger.getLogger(SarabandaSaloonMasterEmulator.class.getName()).log(Level.INFO, "Tempi di avvio:{0}{1}", new Object[]{System.lineSeparator(), StartupTimer.report()});
+        if (Boolean.getBoolean(STARTUP_EXIT_PROPERTY)) {
+            Platform.exit();
+        }
+    }
+
+    /**
+     * Avvia le partite e mostra la parete di stato al posto del tabellone del
+     * master.
+     *
+     * @param stage
+     * @throws IOException
+     */
+    private void startWall(Stage stage) throws IOException {
+        sessionManager = SarabandaSaloonMasterDaemon.createSessions(sessionNumber, null);
+        List<SarabandaSession> sessions = new ArrayList<>(sessionManager.getSessions());
+        sessions.sort(Comparator.comparingInt(SarabandaSession::getListenPort));
+        SarabandaStatusWall wall = new SarabandaStatusWall(sessions);
+        sessionManager.start();
+        if (metricsPort > 0) {
+            metricsExporter = new PrometheusExporter(metricsPort);
+        }
+
+        stage.setTitle("Sarabanda - " + sessionNumber + " partite");
+        stage.setScene(new Scene(wall, 800, 600));
         stage.show();
     }
 
+    @Override
+    public void stop() throws Exception {
+        // Spegne il server, rilascia il canale di invio e scrive gli eventi
+        // rimasti nel log
+        if (gateway != null) {
+            gateway.close();
+        }
+        if (sessionManager != null) {
+            sessionManager.close();
+        } else {
+            SarabandaFXAdapter.getInstance().getController().close();
+        }
+        if (stateLog != null) {
+            stateLog.close();
+        }
+        if (metricsExporter != null) {
+            metricsExporter.close();
+        }
+        SarabandaEventLog.getInstance().close();
+        Logger.getLogger(SarabandaSaloonMasterEmulator.class.getName()).log(Level.INFO, "Latenze:{0}{1}", new Object[]{System.lineSeparator(), LatencyStage.report()});
+        super.stop();
+    }
+
     /**
      * @param args the command line arguments
      */
     public static void main(String[] args) {
+        StartupTimer.mark("main");
+        // Il numero dei pulsanti va impostato prima di creare il controller
+        for (String arg : args) {
+            if (arg.startsWith(SarabandaSaloonMasterDaemon.BUTTONS_OPTION)) {
+                System.setProperty(SarabandaMasterController.BUTTON_NUMBER_PROPERTY, arg.substring(SarabandaSaloonMasterDaemon.BUTTONS_OPTION.length()));
+            } else if (arg.startsWith(SarabandaSaloonMasterDaemon.ARBITRATION_OPTION)) {
+                System.setProperty(SarabandaController.ARBITRATION_WINDOW_PROPERTY, arg.substring(SarabandaSaloonMasterDaemon.ARBITRATION_OPTION.length()));
+            } else if (arg.equals(SarabandaSaloonMasterDaemon.SEQUENCE_OPTION)) {
+                System.setProperty(SarabandaController.SEQUENCE_PROPERTY, "true");
+            } else if (arg.equals(SarabandaSaloonMasterDaemon.RELIABLE_OPTION)) {
+                System.setProperty(SarabandaController.RELIABLE_PROPERTY, "true");
+            } else if (arg.startsWith(SarabandaSaloonMasterDaemon.METRICS_OPTION)) {
+                metricsPort = Integer.parseInt(arg.substring(SarabandaSaloonMasterDaemon.METRICS_OPTION.length()));
+            } else if (arg.startsWith(SarabandaSaloonMasterDaemon.STATE_OPTION)) {
+                statePath = Paths.get(arg.substring(SarabandaSaloonMasterDaemon.STATE_OPTION.length()));
+            } else if (arg.equals(FXML_OPTION)) {
+                fxml = true;
+            } else if (arg.startsWith(SarabandaSaloonMasterDaemon.SESSIONS_OPTION)) {
+                sessionNumber = Integer.parseInt(arg.substring(SarabandaSaloonMasterDaemon.SESSIONS_OPTION.length()));
+            }
+        }
         launch(args);
     }
     
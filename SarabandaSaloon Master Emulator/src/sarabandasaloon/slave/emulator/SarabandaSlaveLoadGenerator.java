@@ -0,0 +1,399 @@
+/*
+ * Copyright 2015 Elvis Del Tedesco
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package sarabandasaloon.slave.emulator;
+
+import com.phante.sarabandasaloon.entity.PushButtonBoard;
+import com.phante.sarabandasaloon.entity.PushButtonStatus;
+import com.phante.sarabandasaloon.network.SarabandaCodec;
+import com.phante.sarabandasaloon.network.SarabandaCommand;
+import com.phante.sarabandasaloon.network.SarabandaController;
+import com.phante.sarabandasaloon.network.SarabandaFrame;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Generatore di traffico che emula N tabelloni slave verso un master in
+ * ascolto su loopback, per trovare il punto di saturazione della ricezione.
+ *
+ * Ogni slave ha un proprio canale e invia, al ritmo e con il mix indicati,
+ * pacchetti B con stati casuali, RESET, ERROR e pacchetti non Sarabanda. Il
+ * generatore applica gli stessi pacchetti a un proprio modello dello stato,
+ * per cui conosce la risposta sendPushButtonStatus attesa per ogni pacchetto
+ * valido: le risposte ricevute sulla porta degli slave vengono abbinate in
+ * ordine a quelle attese per misurare pacchetti persi e latenza dall'invio
+ * all'aggiornamento dello stato. Come il master, si attende risposta solo
+ * per i pacchetti che cambiano lo stato; i reinvii periodici del master
+ * risultano tra le risposte inattese.
+ *
+ * Opzioni: --slaves=N (4), --rate=N pacchetti al secondo per slave (100),
+ * --duration=N secondi (10), --buttons=N (4), --mix=B:70,R:10,E:10,G:10.
+ *
+ * @author elvisdeltedesco
+ */
+public class SarabandaSlaveLoadGenerator {
+
+    // Tipi di pacchetto generati
+    private static final int BUTTON = 0;
+    private static final int RESET = 1;
+    private static final int ERROR = 2;
+    private static final int GARBAGE = 3;
+    private static final String[] TYPE_NAMES = {"B", "R", "E", "G"};
+
+    // Risposte attese in attesa di abbinamento, potenza di 2
+    private static final int EXPECTED_CAPACITY = 1 << 16;
+    // Risposte attese esaminate per abbinare una risposta ricevuta
+    private static final int MATCH_WINDOW = 64;
+    // Numero massimo di latenze conservate
+    private static final int MAX_SAMPLES = 1 << 22;
+    // Attesa delle ultime risposte al termine dell'invio
+    private static final long DRAIN_NANOS = 500_000_000L;
+
+    private final int slaves;
+    private final int rate;
+    private final long durationNanos;
+    private final int buttons;
+    private final int[] mix;
+
+    private final SarabandaCodec codec;
+    // Stato del master come atteso dal generatore
+    private final PushButtonBoard model;
+    private final PushButtonStatus[] statuses;
+    private final Random random = new Random(42);
+
+    // Risposte attese: parole dello stato e istante di invio
+    private final long[][] expectedWords = new long[PushButtonBoard.MAX_WORDS][EXPECTED_CAPACITY];
+    private final long[] expectedNanos = new long[EXPECTED_CAPACITY];
+    private final AtomicLong expectedTail = new AtomicLong();
+    private final AtomicLong expectedHead = new AtomicLong();
+
+    // Contatori
+    private final long[] sent = new long[TYPE_NAMES.length];
+    private long untracked;
+    private long matched;
+    private long lost;
+    private long unexpected;
+    private final long[] latencies = new long[MAX_SAMPLES];
+    private int samples;
+
+    /**
+     *
+     * @param slaves
+     * @param rate
+     * @param durationSeconds
+     * @param buttons
+     * @param mix pesi di B, R, E e pacchetti non validi
+     */
+    public SarabandaSlaveLoadGenerator(int slaves, int rate, int durationSeconds, int buttons, int[] mix) {
+        this.slaves = slaves;
+        this.rate = rate;
+        this.durationNanos = durationSeconds * 1_000_000_000L;
+        this.buttons = buttons;
+        this.mix = mix;
+        codec = new SarabandaCodec(buttons);
+        model = new PushButtonBoard(buttons);
+        statuses = new PushButtonStatus[buttons];
+    }
+
+    /**
+     * @param args the command line arguments
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        int slaves = 4;
+        int rate = 100;
+        int duration = 10;
+        int buttons = SarabandaController.DEFAULT_BUTTON_NUMBER;
+        int[] mix = {70, 10, 10, 10};
+
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            switch (option[0]) {
+                case "--slaves":
+                    slaves = Integer.parseInt(option[1]);
+                    break;
+                case "--rate":
+                    rate = Integer.parseInt(option[1]);
+                    break;
+                case "--duration":
+                    duration = Integer.parseInt(option[1]);
+                    break;
+                case "--buttons":
+                    buttons = Integer.parseInt(option[1]);
+                    break;
+                case "--mix":
+                    mix = parseMix(option[1]);
+                    break;
+                default:
+                    Logger.getLogger(SarabandaSlaveLoadGenerator.class.getName()).log(Level.WARNING, "Opzione {0} sconosciuta", arg);
+                    break;
+            }
+        }
+
+        new SarabandaSlaveLoadGenerator(slaves, rate, duration, buttons, mix).run();
+    }
+
+    /**
+     * Interpreta un mix nella forma B:70,R:10,E:10,G:10.
+     *
+     * @param value
+     * @return
+     */
+    static int[] parseMix(String value) {
+        int[] mix = new int[TYPE_NAMES.length];
+        for (String item : value.split(",")) {
+            String[] pair = item.split(":");
+            int type = Arrays.asList(TYPE_NAMES).indexOf(pair[0].trim().toUpperCase());
+            if (type < 0) {
+                throw new IllegalArgumentException("Tipo di pacchetto sconosciuto: " + pair[0]);
+            }
+            mix[type] = Integer.parseInt(pair[1].trim());
+        }
+        return mix;
+    }
+
+    /**
+     * Esegue la prova e riporta i risultati.
+     *
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void run() throws IOException, InterruptedException {
+        InetSocketAddress master = new InetSocketAddress(InetAddress.getLoopbackAddress(), SarabandaController.UDP_MASTER_PORT);
+
+        DatagramChannel[] channels = new DatagramChannel[slaves];
+        for (int i = 0; i < slaves; i++) {
+            channels[i] = DatagramChannel.open();
+        }
+        DatagramChannel echo = DatagramChannel.open();
+        echo.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), SarabandaController.UDP_SLAVE_PORT));
+
+        Thread receiver = new Thread(() -> receive(echo), "sarabanda-load-echo");
+        receiver.setDaemon(true);
+        receiver.start();
+
+        Logger.getLogger(SarabandaSlaveLoadGenerator.class.getName()).log(Level.INFO, "Invio da {0} slave a {1} pacchetti al secondo ciascuno per {2} secondi", new Object[]{slaves, rate, durationNanos / 1_000_000_000L});
+
+        long interval = 1_000_000_000L / Math.max(1, (long) slaves * rate);
+        long start = System.nanoTime();
+        long next = start;
+        long total = 0;
+        ByteBuffer buffer = ByteBuffer.allocate(SarabandaFrame.MAX_SIZE);
+        long[] previous = new long[PushButtonBoard.MAX_WORDS];
+
+        while (next - start < durationNanos) {
+            // Attende l'istante di invio, in ritardo invia subito
+            long wait;
+            while ((wait = next - System.nanoTime()) > 0) {
+                if (wait > 50_000L) {
+                    LockSupport.parkNanos(wait - 50_000L);
+                }
+            }
+
+            int type = pickType();
+            for (int w = 0; w < model.wordCount(); w++) {
+                previous[w] = model.getWord(w);
+            }
+            buffer.clear();
+            build(type, buffer);
+            buffer.flip();
+
+            // Una risposta è attesa solo per i pacchetti che cambiano lo
+            // stato, e va accodata prima dell'invio perché può arrivare prima
+            // che send ritorni
+            long now = System.nanoTime();
+            boolean changed = false;
+            for (int w = 0; w < model.wordCount(); w++) {
+                changed |= previous[w] != model.getWord(w);
+            }
+            if (changed) {
+                expect(now);
+            }
+
+            channels[(int) (total % slaves)].send(buffer, master);
+            sent[type]++;
+            total++;
+            next += interval;
+        }
+        long elapsed = System.nanoTime() - start;
+
+        // Attende le ultime risposte
+        Thread.sleep(DRAIN_NANOS / 1_000_000L);
+        echo.close();
+        receiver.join(1000);
+        for (DatagramChannel channel : channels) {
+            channel.close();
+        }
+
+        report(total, elapsed);
+    }
+
+    /**
+     * Sceglie il tipo del prossimo pacchetto secondo il mix.
+     */
+    private int pickType() {
+        int sum = 0;
+        for (int weight : mix) {
+            sum += weight;
+        }
+        int pick = random.nextInt(Math.max(1, sum));
+        for (int type = 0; type < mix.length; type++) {
+            pick -= mix[type];
+            if (pick < 0) {
+                return type;
+            }
+        }
+        return BUTTON;
+    }
+
+    /**
+     * Scrive il pacchetto e lo applica al modello dello stato.
+     */
+    private void build(int type, ByteBuffer buffer) {
+        switch (type) {
+            case BUTTON:
+                for (int i = 0; i < buttons; i++) {
+                    statuses[i] = PushButtonStatus.values()[random.nextInt(PushButtonStatus.values().length)];
+                    model.set(i, statuses[i]);
+                }
+                codec.encodeButtons(statuses, buffer);
+                break;
+            case RESET:
+                codec.encode(SarabandaCommand.RESET, buffer);
+                for (int w = 0; w < model.wordCount(); w++) {
+                    model.replace(w, PushButtonStatus.PRESSED, PushButtonStatus.ENABLED);
+                }
+                break;
+            case ERROR:
+                codec.encode(SarabandaCommand.ERROR, buffer);
+                for (int w = 0; w < model.wordCount(); w++) {
+                    model.replace(w, PushButtonStatus.PRESSED, PushButtonStatus.ERROR);
+                }
+                break;
+            default:
+                // Pacchetto che non inizia con l'header Sarabanda
+                int length = 4 + random.nextInt(20);
+                for (int i = 0; i < length; i++) {
+                    buffer.put((byte) ('a' + random.nextInt(26)));
+                }
+                break;
+        }
+    }
+
+    /**
+     * Accoda la risposta attesa per lo stato corrente del modello.
+     */
+    private void expect(long now) {
+        long t = expectedTail.get();
+        if (t - expectedHead.get() >= EXPECTED_CAPACITY) {
+            untracked++;
+            return;
+        }
+        int i = (int) (t & (EXPECTED_CAPACITY - 1));
+        for (int w = 0; w < model.wordCount(); w++) {
+            expectedWords[w][i] = model.getWord(w);
+        }
+        expectedNanos[i] = now;
+        expectedTail.lazySet(t + 1);
+    }
+
+    /**
+     * Loop di ricezione delle risposte del master.
+     */
+    private void receive(DatagramChannel echo) {
+        ByteBuffer buffer = ByteBuffer.allocate(SarabandaFrame.MAX_SIZE);
+        long[] words = new long[PushButtonBoard.MAX_WORDS];
+        try {
+            while (true) {
+                buffer.clear();
+                echo.receive(buffer);
+                long now = System.nanoTime();
+                if (codec.decode(buffer.array(), buffer.position()) != SarabandaCommand.BUTTON) {
+                    continue;
+                }
+                codec.buttonWords(buffer.array(), words);
+                match(words, now);
+            }
+        } catch (ClosedChannelException ex) {
+            // Fine della prova
+        } catch (IOException ex) {
+            Logger.getLogger(SarabandaSlaveLoadGenerator.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Abbina una risposta alla prima risposta attesa uguale entro la
+     * finestra; quelle saltate corrispondono a pacchetti persi.
+     */
+    private void match(long[] words, long now) {
+        long head = expectedHead.get();
+        long tail = expectedTail.get();
+        for (long k = head; k < tail && k < head + MATCH_WINDOW; k++) {
+            int i = (int) (k & (EXPECTED_CAPACITY - 1));
+            boolean equal = true;
+            for (int w = 0; w < model.wordCount() && equal; w++) {
+                equal = expectedWords[w][i] == words[w];
+            }
+            if (equal) {
+                lost += k - head;
+                matched++;
+                if (samples < MAX_SAMPLES) {
+                    latencies[samples++] = now - expectedNanos[i];
+                }
+                expectedHead.lazySet(k + 1);
+                return;
+            }
+        }
+        unexpected++;
+    }
+
+    /**
+     * Riporta i risultati della prova.
+     */
+    private void report(long total, long elapsed) {
+        lost += expectedTail.get() - expectedHead.get();
+        long expected = matched + lost;
+
+        Arrays.sort(latencies, 0, samples);
+        Logger log = Logger.getLogger(SarabandaSlaveLoadGenerator.class.getName());
+        log.log(Level.INFO, "Inviati {0} pacchetti in {1} ms ({2} al secondo): B {3}, R {4}, E {5}, non validi {6}",
+                new Object[]{total, elapsed / 1_000_000L, total * 1_000_000_000L / Math.max(1, elapsed), sent[BUTTON], sent[RESET], sent[ERROR], sent[GARBAGE]});
+        log.log(Level.INFO, "Risposte attese {0}, ricevute {1}, perse {2} ({3}%), inattese {4}, non tracciate {5}",
+                new Object[]{expected, matched, lost, expected == 0 ? 0 : lost * 100.0 / expected, unexpected, untracked});
+        if (samples > 0) {
+            log.log(Level.INFO, "Latenza invio-stato in us: p50 {0}, p99 {1}, p99.9 {2}, max {3}",
+                    new Object[]{percentile(0.5) / 1000, percentile(0.99) / 1000, percentile(0.999) / 1000, latencies[samples - 1] / 1000});
+        }
+    }
+
+    /**
+     *
+     * @param quantile
+     * @return la latenza in nanosecondi al quantile indicato
+     */
+    private long percentile(double quantile) {
+        return latencies[Math.min(samples - 1, (int) (quantile * samples))];
+    }
+}